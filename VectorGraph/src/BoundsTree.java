@@ -0,0 +1,93 @@
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+
+/**
+ * Static bounding-volume hierarchy over a list of rectangles, stored in flat arrays.
+ * Built once (median split along the longer axis) and queried for rectangles or points;
+ * results come back as item indices so callers can keep their own ordering.
+ */
+class BoundsTree {
+    private static final int LEAF_SIZE = 8;
+
+    private final double[] minX, minY, maxX, maxY;
+    private final int[] left, right, start, end;
+    private final int[] items;
+    private int nodes = 0;
+
+    BoundsTree(Rectangle2D[] bounds) {
+        int n = bounds.length;
+        // Median splits never leave fewer than LEAF_SIZE / 2 items in a leaf
+        int cap = 2 * (n / (LEAF_SIZE / 2) + 1);
+        minX = new double[cap]; minY = new double[cap]; maxX = new double[cap]; maxY = new double[cap];
+        left = new int[cap]; right = new int[cap]; start = new int[cap]; end = new int[cap];
+        items = new int[n];
+        for (int i = 0; i < n; i++) items[i] = i;
+        double[] cx = new double[n], cy = new double[n];
+        for (int i = 0; i < n; i++) { cx[i] = bounds[i].getCenterX(); cy[i] = bounds[i].getCenterY(); }
+        build(bounds, cx, cy, 0, n);
+    }
+
+    private int build(Rectangle2D[] b, double[] cx, double[] cy, int from, int to) {
+        int node = nodes++;
+        double x0 = Double.MAX_VALUE, y0 = Double.MAX_VALUE, x1 = -Double.MAX_VALUE, y1 = -Double.MAX_VALUE;
+        for (int k = from; k < to; k++) {
+            Rectangle2D r = b[items[k]];
+            x0 = Math.min(x0, r.getMinX()); y0 = Math.min(y0, r.getMinY());
+            x1 = Math.max(x1, r.getMaxX()); y1 = Math.max(y1, r.getMaxY());
+        }
+        minX[node] = x0; minY[node] = y0; maxX[node] = x1; maxY[node] = y1;
+        start[node] = from; end[node] = to; left[node] = right[node] = -1;
+        if (to - from > LEAF_SIZE) {
+            double[] key = (x1 - x0) >= (y1 - y0) ? cx : cy;
+            int mid = (from + to) >>> 1;
+            select(key, from, to - 1, mid);
+            left[node] = build(b, cx, cy, from, mid);
+            right[node] = build(b, cx, cy, mid, to);
+        }
+        return node;
+    }
+
+    /** Quickselect on items[from..to] so items[k] holds the k-th smallest key. */
+    private void select(double[] key, int from, int to, int k) {
+        while (from < to) {
+            double pivot = key[items[(from + to) >>> 1]];
+            int i = from, j = to;
+            while (i <= j) {
+                while (key[items[i]] < pivot) i++;
+                while (key[items[j]] > pivot) j--;
+                if (i <= j) { int t = items[i]; items[i] = items[j]; items[j] = t; i++; j--; }
+            }
+            if (k <= j) to = j;
+            else if (k >= i) from = i;
+            else return;
+        }
+    }
+
+    boolean isEmpty() {
+        return items.length == 0;
+    }
+
+    Rectangle2D bounds() {
+        if (items.length == 0) return new Rectangle2D.Double();
+        return new Rectangle2D.Double(minX[0], minY[0], maxX[0] - minX[0], maxY[0] - minY[0]);
+    }
+
+    /**
+     * Marks hit[i] for every item whose bounds may intersect r (leaves are not split further,
+     * so a few near misses come along); returns how many were marked.
+     */
+    int query(Rectangle2D r, boolean[] hit) {
+        Arrays.fill(hit, false);
+        if (items.length == 0) return 0;
+        return query(0, r.getMinX(), r.getMinY(), r.getMaxX(), r.getMaxY(), hit);
+    }
+
+    private int query(int node, double x0, double y0, double x1, double y1, boolean[] hit) {
+        if (maxX[node] < x0 || minX[node] > x1 || maxY[node] < y0 || minY[node] > y1) return 0;
+        if (left[node] < 0 || (minX[node] >= x0 && maxX[node] <= x1 && minY[node] >= y0 && maxY[node] <= y1)) {
+            for (int k = start[node]; k < end[node]; k++) hit[items[k]] = true;
+            return end[node] - start[node];
+        }
+        return query(left[node], x0, y0, x1, y1, hit) + query(right[node], x0, y0, x1, y1, hit);
+    }
+}
@@ -0,0 +1,229 @@
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Rotate, scale, mirror, align and distribute across a whole selection in one pass. Points, line
+ * ends and polygon vertices are packed into a single double[] and mapped by AffineTransform in
+ * parallel chunks; rectangles, circles, groups and clouds keep their own transformed(), which is
+ * constant work per object. Each command returns one undo entry holding indices and the transform
+ * (or the per-object offsets), never a copy of the scene.
+ */
+class BulkTransform {
+    /** Coordinates per parallel task; selections smaller than this stay on the calling thread. */
+    static final int CHUNK = 1 << 14;
+
+    enum Align { LEFT, CENTER, RIGHT, TOP, MIDDLE, BOTTOM }
+
+    /** Union of the shapes of objects[indices]; rotation and scale pivot about its centre. */
+    static Rectangle2D bounds(List<Source.GraphObject> objects, int[] indices) {
+        double x0 = Double.MAX_VALUE, y0 = Double.MAX_VALUE, x1 = -Double.MAX_VALUE, y1 = -Double.MAX_VALUE;
+        for (int i : indices) {
+            Rectangle2D b = objects.get(i).getShape().getBounds2D();
+            x0 = Math.min(x0, b.getMinX()); y0 = Math.min(y0, b.getMinY());
+            x1 = Math.max(x1, b.getMaxX()); y1 = Math.max(y1, b.getMaxY());
+        }
+        return indices.length == 0 ? new Rectangle2D.Double() : new Rectangle2D.Double(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    /** Maps objects[indices] through at (which must be invertible), replacing any that change type. */
+    static Source.Edit transform(List<Source.GraphObject> objects, int[] indices, AffineTransform at) {
+        return new TransformEdit(indices, new AffineTransform(at), apply(objects, indices, at));
+    }
+
+    /** Lines up the chosen edge or centre of each object with the selection's. */
+    static Source.Edit align(List<Source.GraphObject> objects, int[] indices, Align a) {
+        Rectangle2D all = bounds(objects, indices);
+        double[] dx = new double[indices.length], dy = new double[indices.length];
+        for (int k = 0; k < indices.length; k++) {
+            Rectangle2D b = objects.get(indices[k]).getShape().getBounds2D();
+            switch (a) {
+                case LEFT: dx[k] = all.getMinX() - b.getMinX(); break;
+                case CENTER: dx[k] = all.getCenterX() - b.getCenterX(); break;
+                case RIGHT: dx[k] = all.getMaxX() - b.getMaxX(); break;
+                case TOP: dy[k] = all.getMinY() - b.getMinY(); break;
+                case MIDDLE: dy[k] = all.getCenterY() - b.getCenterY(); break;
+                case BOTTOM: dy[k] = all.getMaxY() - b.getMaxY(); break;
+            }
+        }
+        MoveEdit e = new MoveEdit(indices, dx, dy);
+        e.apply(objects, 1);
+        return e;
+    }
+
+    /** Spaces object centres evenly between the outermost two; needs at least three objects. */
+    static Source.Edit distribute(List<Source.GraphObject> objects, int[] indices, boolean horizontal) {
+        int n = indices.length;
+        double[] centre = new double[n];
+        for (int k = 0; k < n; k++) {
+            Rectangle2D b = objects.get(indices[k]).getShape().getBounds2D();
+            centre[k] = horizontal ? b.getCenterX() : b.getCenterY();
+        }
+        int[] order = new int[n];
+        for (int k = 0; k < n; k++) order[k] = k;
+        sort(order, centre, 0, n - 1);
+        double first = centre[order[0]], step = (centre[order[n - 1]] - first) / (n - 1);
+        double[] dx = new double[n], dy = new double[n];
+        for (int r = 1; r < n - 1; r++) {
+            int k = order[r];
+            if (horizontal) dx[k] = first + r * step - centre[k]; else dy[k] = first + r * step - centre[k];
+        }
+        MoveEdit e = new MoveEdit(indices, dx, dy);
+        e.apply(objects, 1);
+        return e;
+    }
+
+    /**
+     * Transforms in place. Returns, per index, the original of each object whose type could not
+     * hold the result (a rotated rectangle becomes a polygon), or null when none were replaced.
+     */
+    private static Source.GraphObject[] apply(List<Source.GraphObject> objects, int[] indices, AffineTransform at) {
+        int n = indices.length;
+        int[] offset = new int[n + 1];
+        for (int k = 0; k < n; k++) offset[k + 1] = offset[k] + packedPoints(objects.get(indices[k]));
+        int points = offset[n];
+        if (points > 0) {
+            double[] xy = new double[points * 2];
+            forEach(n, points, k -> gather(objects.get(indices[k]), xy, offset[k] * 2));
+            IntStream chunks = IntStream.range(0, (points + CHUNK - 1) / CHUNK);
+            if (points > CHUNK) chunks = chunks.parallel();
+            chunks.forEach(c -> { int from = c * CHUNK; at.transform(xy, from * 2, xy, from * 2, Math.min(CHUNK, points - from)); });
+            forEach(n, points, k -> scatter(objects.get(indices[k]), xy, offset[k] * 2));
+        }
+        Source.GraphObject[] replaced = null;
+        for (int k = 0; k < n; k++) {
+            Source.GraphObject o = objects.get(indices[k]);
+            if (packed(o)) continue;
+            Source.GraphObject r = o.transformed(at);
+            if (r != o) {
+                if (replaced == null) replaced = new Source.GraphObject[n];
+                replaced[k] = o;
+                objects.set(indices[k], r);
+            }
+        }
+        return replaced;
+    }
+
+    private static boolean packed(Source.GraphObject o) {
+        return o instanceof Source.GPoint || o instanceof Source.GLine || o instanceof Source.GPolygon;
+    }
+
+    private static int packedPoints(Source.GraphObject o) {
+        if (o instanceof Source.GPoint) return 1;
+        if (o instanceof Source.GLine) return 2;
+        if (o instanceof Source.GPolygon) return ((Source.GPolygon) o).pts.size();
+        return 0;
+    }
+
+    private static void gather(Source.GraphObject o, double[] xy, int at) {
+        if (o instanceof Source.GPoint) { Source.GPoint p = (Source.GPoint) o; xy[at] = p.x; xy[at + 1] = p.y; }
+        else if (o instanceof Source.GLine) { Source.GLine l = (Source.GLine) o; xy[at] = l.x1; xy[at + 1] = l.y1; xy[at + 2] = l.x2; xy[at + 3] = l.y2; }
+        else if (o instanceof Source.GPolygon) {
+            for (java.awt.geom.Point2D.Double p : ((Source.GPolygon) o).pts) { xy[at++] = p.x; xy[at++] = p.y; }
+        }
+    }
+
+    private static void scatter(Source.GraphObject o, double[] xy, int at) {
+        if (o instanceof Source.GPoint) { Source.GPoint p = (Source.GPoint) o; p.x = xy[at]; p.y = xy[at + 1]; }
+        else if (o instanceof Source.GLine) { Source.GLine l = (Source.GLine) o; l.x1 = xy[at]; l.y1 = xy[at + 1]; l.x2 = xy[at + 2]; l.y2 = xy[at + 3]; l.rebuildShape(); }
+        else if (o instanceof Source.GPolygon) {
+            Source.GPolygon g = (Source.GPolygon) o;
+            for (java.awt.geom.Point2D.Double p : g.pts) { p.x = xy[at++]; p.y = xy[at++]; }
+            g.rebuildPath();
+        }
+    }
+
+    /** Runs body for 0..n-1, in parallel when there is enough geometry to pay for the fork. */
+    private static void forEach(int n, int work, IntConsumer body) {
+        IntStream s = IntStream.range(0, n);
+        if (work > CHUNK) s = s.parallel();
+        s.forEach(body);
+    }
+
+    /** Sorts order[lo..hi] by key[order[i]]. */
+    private static void sort(int[] order, double[] key, int lo, int hi) {
+        while (lo < hi) {
+            double pivot = key[order[(lo + hi) >>> 1]];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (key[order[i]] < pivot) i++;
+                while (key[order[j]] > pivot) j--;
+                if (i <= j) { int t = order[i]; order[i] = order[j]; order[j] = t; i++; j--; }
+            }
+            if (j - lo < hi - i) { sort(order, key, lo, j); lo = i; }
+            else { sort(order, key, i, hi); hi = j; }
+        }
+    }
+
+    /** Undo entry for rotate, scale and mirror: the transform plus the originals of replaced objects. */
+    static final class TransformEdit implements Source.Edit {
+        final int[] indices;
+        final AffineTransform at;
+        Source.GraphObject[] originals;
+
+        TransformEdit(int[] indices, AffineTransform at, Source.GraphObject[] originals) {
+            this.indices = indices;
+            this.at = at;
+            this.originals = originals;
+        }
+
+        @Override
+        public ArrayList<Source.GraphObject> undo(ArrayList<Source.GraphObject> objects) {
+            AffineTransform inverse;
+            try { inverse = at.createInverse(); }
+            catch (NoninvertibleTransformException ex) { throw new IllegalStateException(ex); }
+            if (originals == null) { apply(objects, indices, inverse); return objects; }
+            // Replaced objects are swapped back as they were; the rest map through the inverse
+            int kept = 0;
+            for (Source.GraphObject o : originals) if (o == null) kept++;
+            int[] rest = new int[kept];
+            kept = 0;
+            for (int k = 0; k < indices.length; k++) {
+                if (originals[k] == null) rest[kept++] = indices[k];
+                else objects.set(indices[k], originals[k]);
+            }
+            apply(objects, rest, inverse);
+            return objects;
+        }
+
+        @Override
+        public ArrayList<Source.GraphObject> redo(ArrayList<Source.GraphObject> objects) {
+            originals = apply(objects, indices, at);
+            return objects;
+        }
+    }
+
+    /** Undo entry for align and distribute: one offset per object. */
+    static final class MoveEdit implements Source.Edit {
+        final int[] indices;
+        final double[] dx, dy;
+
+        MoveEdit(int[] indices, double[] dx, double[] dy) {
+            this.indices = indices;
+            this.dx = dx;
+            this.dy = dy;
+        }
+
+        void apply(List<Source.GraphObject> objects, int sign) {
+            for (int k = 0; k < indices.length; k++) {
+                if (dx[k] != 0 || dy[k] != 0) objects.get(indices[k]).move(sign * dx[k], sign * dy[k]);
+            }
+        }
+
+        @Override
+        public ArrayList<Source.GraphObject> undo(ArrayList<Source.GraphObject> objects) {
+            apply(objects, -1);
+            return objects;
+        }
+
+        @Override
+        public ArrayList<Source.GraphObject> redo(ArrayList<Source.GraphObject> objects) {
+            apply(objects, 1);
+            return objects;
+        }
+    }
+}
@@ -0,0 +1,318 @@
+import java.util.Arrays;
+
+/**
+ * Network analysis over a scene's points (nodes) and lines (edges), held as a compressed sparse
+ * row adjacency in primitive arrays so millions of edges fit in a few arrays. A line end that is
+ * attached to a point (see Links) joins that point; a loose end joins the topmost point within
+ * SNAP_RADIUS, the same test the line tool snaps with. Lines that don't reach a point at both ends,
+ * or that start and end on the same point, are not edges. Edge weight is the line's length.
+ * <p>
+ * Everything after the input arrays are gathered runs off the EDT.
+ */
+class GraphAnalysis {
+    /** Matches GPoint.contains. */
+    static final double SNAP_RADIUS = 8;
+
+    final int nodeCount, edgeCount;
+    /** Neighbours of node v are adjTarget[adjStart[v] .. adjStart[v + 1]), reached through adjEdge. */
+    final int[] adjStart, adjTarget, adjEdge;
+    /** Per edge: the line it came from (index into the gathered lines) and its length. */
+    final int[] edgeLine;
+    final double[] edgeLength;
+
+    private GraphAnalysis(int nodeCount, int[] from, int[] to, int[] line, double[] length, int edges) {
+        this.nodeCount = nodeCount;
+        this.edgeCount = edges;
+        edgeLine = Arrays.copyOf(line, edges);
+        edgeLength = Arrays.copyOf(length, edges);
+        adjStart = new int[nodeCount + 1];
+        for (int e = 0; e < edges; e++) { adjStart[from[e] + 1]++; adjStart[to[e] + 1]++; }
+        for (int v = 0; v < nodeCount; v++) adjStart[v + 1] += adjStart[v];
+        adjTarget = new int[2 * edges];
+        adjEdge = new int[2 * edges];
+        int[] fill = Arrays.copyOf(adjStart, nodeCount);
+        for (int e = 0; e < edges; e++) {
+            int a = from[e], b = to[e];
+            adjTarget[fill[a]] = b; adjEdge[fill[a]++] = e;
+            adjTarget[fill[b]] = a; adjEdge[fill[b]++] = e;
+        }
+    }
+
+    /**
+     * Builds the graph. Nodes are given by their coordinates in z-order; lines as x1, y1, x2, y2
+     * each, with the node their ends are attached to, or -1 to snap by position.
+     */
+    static GraphAnalysis build(double[] nodeX, double[] nodeY, int nodes, double[] lines, int[] startNode, int[] endNode, int lineCount) {
+        PointGrid grid = new PointGrid(nodeX, nodeY, nodes, SNAP_RADIUS);
+        int[] from = new int[lineCount], to = new int[lineCount], line = new int[lineCount];
+        double[] length = new double[lineCount];
+        int edges = 0;
+        for (int i = 0; i < lineCount; i++) {
+            double x1 = lines[4 * i], y1 = lines[4 * i + 1], x2 = lines[4 * i + 2], y2 = lines[4 * i + 3];
+            int a = startNode[i] >= 0 ? startNode[i] : grid.topmostWithin(x1, y1);
+            int b = endNode[i] >= 0 ? endNode[i] : grid.topmostWithin(x2, y2);
+            if (a < 0 || b < 0 || a == b) continue;
+            from[edges] = a; to[edges] = b; line[edges] = i;
+            length[edges++] = Math.hypot(x2 - x1, y2 - y1);
+        }
+        return new GraphAnalysis(nodes, from, to, line, length, edges);
+    }
+
+    int degree(int v) {
+        return adjStart[v + 1] - adjStart[v];
+    }
+
+    // --- Connected components ---
+
+    static final class Components {
+        /** Component id per node, numbered from 0 in order of each component's lowest node. */
+        final int[] label;
+        final int count;
+        /** Nodes per component. */
+        final int[] size;
+
+        Components(int[] label, int count, int[] size) {
+            this.label = label;
+            this.count = count;
+            this.size = size;
+        }
+
+        int largest() {
+            int best = 0;
+            for (int c = 1; c < count; c++) if (size[c] > size[best]) best = c;
+            return best;
+        }
+    }
+
+    /** Union-find over the edge list with union by size and path halving; near linear. */
+    Components components() {
+        int[] parent = new int[nodeCount], setSize = new int[nodeCount];
+        for (int v = 0; v < nodeCount; v++) { parent[v] = v; setSize[v] = 1; }
+        for (int v = 0; v < nodeCount; v++) {
+            for (int k = adjStart[v]; k < adjStart[v + 1]; k++) {
+                int w = adjTarget[k];
+                if (w < v) continue; // each edge once
+                int a = find(parent, v), b = find(parent, w);
+                if (a == b) continue;
+                if (setSize[a] < setSize[b]) { int t = a; a = b; b = t; }
+                parent[b] = a;
+                setSize[a] += setSize[b];
+            }
+        }
+        int[] label = new int[nodeCount], rootLabel = new int[nodeCount];
+        Arrays.fill(rootLabel, -1);
+        int count = 0;
+        for (int v = 0; v < nodeCount; v++) {
+            int r = find(parent, v);
+            if (rootLabel[r] < 0) rootLabel[r] = count++;
+            label[v] = rootLabel[r];
+        }
+        int[] size = new int[count];
+        for (int v = 0; v < nodeCount; v++) size[label[v]]++;
+        return new Components(label, count, size);
+    }
+
+    private static int find(int[] parent, int v) {
+        while (parent[v] != v) { parent[v] = parent[parent[v]]; v = parent[v]; }
+        return v;
+    }
+
+    // --- Shortest paths ---
+
+    static final class Path {
+        final double length;
+        /** Nodes from source to target, and the edges between them. */
+        final int[] nodes, edges;
+
+        Path(double length, int[] nodes, int[] edges) {
+            this.length = length;
+            this.nodes = nodes;
+            this.edges = edges;
+        }
+    }
+
+    /** Dijkstra with an indexed binary heap; stops as soon as target is settled. Null if unreachable. */
+    Path shortestPath(int source, int target) {
+        double[] dist = new double[nodeCount];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        int[] via = new int[nodeCount];
+        Arrays.fill(via, -1);
+        NodeHeap heap = new NodeHeap(nodeCount, dist);
+        dist[source] = 0;
+        heap.push(source);
+        while (!heap.isEmpty()) {
+            int v = heap.pop();
+            if (v == target) break;
+            for (int k = adjStart[v]; k < adjStart[v + 1]; k++) {
+                int w = adjTarget[k], e = adjEdge[k];
+                double d = dist[v] + edgeLength[e];
+                if (d < dist[w]) { dist[w] = d; via[w] = e; heap.pushOrDecrease(w); }
+            }
+        }
+        if (dist[target] == Double.POSITIVE_INFINITY) return null;
+        int hops = 0;
+        for (int v = target; v != source; v = other(via[v], v)) hops++;
+        int[] nodes = new int[hops + 1], edges = new int[hops];
+        int v = target;
+        nodes[hops] = v;
+        for (int i = hops - 1; i >= 0; i--) { edges[i] = via[v]; v = other(via[v], v); nodes[i] = v; }
+        return new Path(dist[target], nodes, edges);
+    }
+
+    // The CSR arrays don't keep edge endpoints, so look the far end up from v's side
+    private int other(int e, int v) {
+        for (int k = adjStart[v]; k < adjStart[v + 1]; k++) if (adjEdge[k] == e) return adjTarget[k];
+        throw new IllegalStateException("edge " + e + " does not touch node " + v);
+    }
+
+    /** Min-heap of node ids keyed by dist[], with each node's heap position for decrease-key. */
+    private static final class NodeHeap {
+        private final int[] heap, pos;
+        private final double[] key;
+        private int size;
+
+        NodeHeap(int n, double[] key) {
+            heap = new int[n];
+            pos = new int[n];
+            Arrays.fill(pos, -1);
+            this.key = key;
+        }
+
+        boolean isEmpty() { return size == 0; }
+
+        void push(int v) { heap[size] = v; pos[v] = size; up(size++); }
+
+        void pushOrDecrease(int v) { if (pos[v] < 0) push(v); else up(pos[v]); }
+
+        int pop() {
+            int top = heap[0];
+            pos[top] = -2; // settled
+            if (--size > 0) { heap[0] = heap[size]; pos[heap[0]] = 0; down(0); }
+            return top;
+        }
+
+        private void up(int i) {
+            int v = heap[i];
+            while (i > 0) {
+                int p = (i - 1) >>> 1;
+                if (key[heap[p]] <= key[v]) break;
+                heap[i] = heap[p]; pos[heap[i]] = i; i = p;
+            }
+            heap[i] = v; pos[v] = i;
+        }
+
+        private void down(int i) {
+            int v = heap[i];
+            while (true) {
+                int c = 2 * i + 1;
+                if (c >= size) break;
+                if (c + 1 < size && key[heap[c + 1]] < key[heap[c]]) c++;
+                if (key[heap[c]] >= key[v]) break;
+                heap[i] = heap[c]; pos[heap[i]] = i; i = c;
+            }
+            heap[i] = v; pos[v] = i;
+        }
+    }
+
+    // --- Degree ---
+
+    static final class Degrees {
+        final int min, max, isolated;
+        final double mean;
+        /** Nodes with the maximum degree. */
+        final int[] hubs;
+        /** histogram[i] counts nodes with degree in [2^i - 1, 2^(i+1) - 1): 0, 1-2, 3-6, 7-14, ... */
+        final int[] histogram;
+
+        Degrees(int min, int max, int isolated, double mean, int[] hubs, int[] histogram) {
+            this.min = min;
+            this.max = max;
+            this.isolated = isolated;
+            this.mean = mean;
+            this.hubs = hubs;
+            this.histogram = histogram;
+        }
+    }
+
+    Degrees degrees() {
+        if (nodeCount == 0) return new Degrees(0, 0, 0, 0, new int[0], new int[0]);
+        int min = Integer.MAX_VALUE, max = 0, isolated = 0, hubCount = 0;
+        int[] histogram = new int[32];
+        for (int v = 0; v < nodeCount; v++) {
+            int d = degree(v);
+            min = Math.min(min, d);
+            if (d > max) { max = d; hubCount = 0; }
+            if (d == max) hubCount++;
+            if (d == 0) isolated++;
+            histogram[31 - Integer.numberOfLeadingZeros(d + 1)]++;
+        }
+        int[] hubs = new int[hubCount];
+        for (int v = 0, n = 0; v < nodeCount; v++) if (degree(v) == max) hubs[n++] = v;
+        int used = histogram.length;
+        while (used > 1 && histogram[used - 1] == 0) used--;
+        return new Degrees(min, max, isolated, 2.0 * edgeCount / nodeCount, hubs, Arrays.copyOf(histogram, used));
+    }
+
+    /** Uniform grid hash over the nodes for radius queries, as flat arrays: cell table plus per-node chains. */
+    private static final class PointGrid {
+        private final double[] x, y;
+        private final double cell;
+        private final long[] keys;
+        private final int[] head, next;
+        private final int mask;
+
+        PointGrid(double[] x, double[] y, int n, double radius) {
+            this.x = x;
+            this.y = y;
+            this.cell = radius;
+            int cap = Integer.highestOneBit(Math.max(4, n * 2 - 1)) << 1;
+            keys = new long[cap];
+            head = new int[cap];
+            Arrays.fill(head, -1);
+            mask = cap - 1;
+            next = new int[n];
+            for (int i = 0; i < n; i++) {
+                int slot = slot(key((long) Math.floor(x[i] / cell), (long) Math.floor(y[i] / cell)), true);
+                next[i] = head[slot];
+                head[slot] = i;
+            }
+        }
+
+        private static long key(long cx, long cy) {
+            return (cx << 32) ^ (cy & 0xffffffffL);
+        }
+
+        private int slot(long key, boolean insert) {
+            int s = (int) (mix(key) & mask);
+            while (head[s] >= 0) {
+                if (keys[s] == key) return s;
+                s = (s + 1) & mask;
+            }
+            if (insert) keys[s] = key;
+            return insert ? s : -1;
+        }
+
+        private static long mix(long k) {
+            k ^= k >>> 33; k *= 0xff51afd7ed558ccdL; k ^= k >>> 33;
+            return k;
+        }
+
+        /** The highest-index node within the radius of (px, py), or -1. */
+        int topmostWithin(double px, double py) {
+            long cx = (long) Math.floor(px / cell), cy = (long) Math.floor(py / cell);
+            int best = -1;
+            double r2 = cell * cell;
+            for (long gx = cx - 1; gx <= cx + 1; gx++) {
+                for (long gy = cy - 1; gy <= cy + 1; gy++) {
+                    int s = slot(key(gx, gy), false);
+                    if (s < 0) continue;
+                    for (int i = head[s]; i >= 0; i = next[i]) {
+                        double dx = x[i] - px, dy = y[i] - py;
+                        if (i > best && dx * dx + dy * dy < r2) best = i;
+                    }
+                }
+            }
+            return best;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Bentley-Ottmann sweep over a flat array of segments (x1, y1, x2, y2 per segment).
+ * Runs in O((n + k) log n) and reports every point where two segments cross or where
+ * one segment ends on the interior of another. Segments that only share an endpoint
+ * (polygon corners, lines snapped to the same point) are not reported.
+ */
+class IntersectionFinder {
+
+    /** Called every few thousand events; return false to cancel the sweep. */
+    interface Progress {
+        boolean update(int done, int total);
+    }
+
+    private static final Integer LOW = -1, HIGH = -2;
+
+    private final double[] seg;
+    private final double tol;
+    private double sweepX, sweepY;
+    private boolean afterSweep;
+
+    private final TreeMap<double[], ArrayList<Integer>> queue;
+    private final TreeSet<Integer> status;
+    private double[] found = new double[64];
+    private int foundCount = 0;
+
+    private IntersectionFinder(double[] segments, int count) {
+        seg = Arrays.copyOf(segments, count * 4);
+        double extent = 1;
+        for (int i = 0; i < count; i++) {
+            int o = i * 4;
+            // Orient every segment so its first point is the sweep's start (lowest x, then lowest y)
+            if (seg[o] > seg[o + 2] || (seg[o] == seg[o + 2] && seg[o + 1] > seg[o + 3])) {
+                double tx = seg[o], ty = seg[o + 1];
+                seg[o] = seg[o + 2]; seg[o + 1] = seg[o + 3];
+                seg[o + 2] = tx; seg[o + 3] = ty;
+            }
+            for (int k = 0; k < 4; k++) extent = Math.max(extent, Math.abs(seg[o + k]));
+        }
+        tol = extent * 1e-9;
+        queue = new TreeMap<>(this::comparePoints);
+        status = new TreeSet<>(this::compareSegments);
+        for (int i = 0; i < count; i++) {
+            int o = i * 4;
+            queue.computeIfAbsent(new double[]{seg[o], seg[o + 1]}, p -> new ArrayList<>()).add(i);
+            queue.computeIfAbsent(new double[]{seg[o + 2], seg[o + 3]}, p -> new ArrayList<>());
+        }
+    }
+
+    /**
+     * Returns the intersection points as packed x, y pairs, or null if the progress callback cancelled.
+     */
+    static double[] find(double[] segments, int count, Progress progress) {
+        return new IntersectionFinder(segments, count).run(progress);
+    }
+
+    private double[] run(Progress progress) {
+        int done = 0;
+        while (!queue.isEmpty()) {
+            java.util.Map.Entry<double[], ArrayList<Integer>> e = queue.pollFirstEntry();
+            handleEvent(e.getKey(), e.getValue());
+            if (progress != null && (++done & 4095) == 0 && !progress.update(done, done + queue.size())) return null;
+        }
+        return Arrays.copyOf(found, foundCount * 2);
+    }
+
+    private void handleEvent(double[] p, ArrayList<Integer> starting) {
+        sweepX = p[0]; sweepY = p[1]; afterSweep = false;
+
+        // Segments currently in the status that pass through p, either ending here or continuing
+        NavigableSet<Integer> through = status.subSet(LOW, false, HIGH, false);
+        ArrayList<Integer> continuing = new ArrayList<>();
+        int ending = 0;
+        for (Integer s : through) {
+            int o = s * 4;
+            if (Math.abs(seg[o + 2] - p[0]) <= tol && Math.abs(seg[o + 3] - p[1]) <= tol) ending++;
+            else continuing.add(s);
+        }
+        if (continuing.size() >= 2 || (continuing.size() >= 1 && starting.size() + ending >= 1)) report(p);
+
+        // Re-insert with the order they take just after p so the crossing segments swap places
+        through.clear();
+        afterSweep = true;
+        status.addAll(starting);
+        status.addAll(continuing);
+
+        if (starting.isEmpty() && continuing.isEmpty()) {
+            checkPair(status.lower(LOW), status.higher(HIGH), p);
+        } else {
+            checkPair(status.lower(LOW), status.higher(LOW), p);
+            checkPair(status.lower(HIGH), status.higher(HIGH), p);
+        }
+    }
+
+    private void checkPair(Integer a, Integer b, double[] p) {
+        if (a == null || b == null) return;
+        double[] q = intersect(a * 4, b * 4);
+        if (q != null && comparePoints(q, p) > 0 && !queue.containsKey(q)) queue.put(q, new ArrayList<>());
+    }
+
+    private double[] intersect(int a, int b) {
+        double ax = seg[a], ay = seg[a + 1], adx = seg[a + 2] - ax, ady = seg[a + 3] - ay;
+        double bx = seg[b], by = seg[b + 1], bdx = seg[b + 2] - bx, bdy = seg[b + 3] - by;
+        double d = adx * bdy - ady * bdx;
+        double cx = bx - ax, cy = by - ay;
+        double lenA = Math.hypot(adx, ady), lenB = Math.hypot(bdx, bdy);
+        if (Math.abs(d) <= tol * (lenA + lenB)) {
+            // Parallel: only collinear overlaps meet, first at the later of the two start points
+            if (Math.abs(cx * ady - cy * adx) > tol * lenA) return null;
+            double[] start = comparePoints(new double[]{ax, ay}, new double[]{bx, by}) >= 0 ? new double[]{ax, ay} : new double[]{bx, by};
+            double[] endA = {seg[a + 2], seg[a + 3]}, endB = {seg[b + 2], seg[b + 3]};
+            return comparePoints(start, endA) <= 0 && comparePoints(start, endB) <= 0 ? start : null;
+        }
+        double t = (cx * bdy - cy * bdx) / d, u = (cx * ady - cy * adx) / d;
+        double slackA = tol / Math.max(lenA, tol), slackB = tol / Math.max(lenB, tol);
+        if (t < -slackA || t > 1 + slackA || u < -slackB || u > 1 + slackB) return null;
+        double[] q = {ax + t * adx, ay + t * ady};
+        // Snap onto an exact endpoint so the event merges with the endpoint's own event
+        for (int o : new int[]{a, a + 2, b, b + 2}) {
+            if (Math.abs(seg[o] - q[0]) <= tol && Math.abs(seg[o + 1] - q[1]) <= tol) return new double[]{seg[o], seg[o + 1]};
+        }
+        return q;
+    }
+
+    private void report(double[] p) {
+        if (foundCount * 2 == found.length) found = Arrays.copyOf(found, found.length * 2);
+        found[foundCount * 2] = p[0];
+        found[foundCount * 2 + 1] = p[1];
+        foundCount++;
+    }
+
+    private double yAt(int s) {
+        int o = s * 4;
+        double x1 = seg[o], y1 = seg[o + 1], x2 = seg[o + 2], y2 = seg[o + 3];
+        if (x1 == x2) return Math.max(y1, Math.min(y2, sweepY));
+        return y1 + (sweepX - x1) * (y2 - y1) / (x2 - x1);
+    }
+
+    private double slope(int s) {
+        int o = s * 4;
+        double dx = seg[o + 2] - seg[o];
+        return dx == 0 ? Double.POSITIVE_INFINITY : (seg[o + 3] - seg[o + 1]) / dx;
+    }
+
+    private int compareSegments(Integer a, Integer b) {
+        if (a.equals(b)) return 0;
+        if (a < 0 && b < 0) return a.equals(LOW) ? -1 : 1;
+        if (a < 0) return probe(a, yAt(b));
+        if (b < 0) return -probe(b, yAt(a));
+        double ya = yAt(a), yb = yAt(b);
+        if (Math.abs(ya - yb) > tol) return ya < yb ? -1 : 1;
+        // Segments meeting at the sweep point: lower slope lies below just after it, above just before it
+        int bySlope = Double.compare(slope(a), slope(b));
+        if (bySlope != 0) return afterSweep ? bySlope : -bySlope;
+        return Integer.compare(a, b);
+    }
+
+    /** The probes bracket exactly the segments that pass through the current sweep point. */
+    private int probe(Integer probe, double y) {
+        if (probe.equals(LOW)) return y >= sweepY - tol ? -1 : 1;
+        return y <= sweepY + tol ? 1 : -1;
+    }
+
+    private int comparePoints(double[] p, double[] q) {
+        if (Math.abs(p[0] - q[0]) > tol) return p[0] < q[0] ? -1 : 1;
+        if (Math.abs(p[1] - q[1]) > tol) return p[1] < q[1] ? -1 : 1;
+        return 0;
+    }
+}
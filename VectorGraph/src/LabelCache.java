@@ -0,0 +1,96 @@
+import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.geom.AffineTransform;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Bounded LRU cache of laid-out point labels, keyed by text, font and zoom band.
+ * A renamed point simply misses and lays out its new text; the stale entry ages out.
+ */
+class LabelCache {
+    private static final int MAX_ENTRIES = 8192;
+    // Four bands per doubling of zoom keeps hinting close to the real scale without a miss per wheel step
+    private static final int BANDS_PER_OCTAVE = 4;
+
+    /** The font the canvas draws labels in, and the one {@link #width} measures. */
+    static final Font FONT = new Font(Font.DIALOG, Font.PLAIN, 12);
+    private static final FontRenderContext MEASURE = new FontRenderContext(null, true, true);
+
+    private static final Map<Key, GlyphVector> cache = new LinkedHashMap<>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, GlyphVector> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private static final Map<String, Float> widths = new LinkedHashMap<>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Float> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    static synchronized GlyphVector glyphs(Graphics2D g2d, String text) {
+        AffineTransform at = g2d.getTransform();
+        double scale = Math.sqrt(Math.abs(at.getDeterminant()));
+        int band = scale > 0 ? (int) Math.round(Math.log(scale) / Math.log(2) * BANDS_PER_OCTAVE) : 0;
+        FontRenderContext frc = g2d.getFontRenderContext();
+        Key key = new Key(text, g2d.getFont(), band, frc.isAntiAliased(), frc.usesFractionalMetrics());
+        GlyphVector gv = cache.get(key);
+        if (gv == null) {
+            double bandScale = Math.pow(2, band / (double) BANDS_PER_OCTAVE);
+            FontRenderContext bandFrc = new FontRenderContext(AffineTransform.getScaleInstance(bandScale, bandScale),
+                    frc.getAntiAliasingHint(), frc.getFractionalMetricsHint());
+            gv = key.font.createGlyphVector(bandFrc, text);
+            cache.put(key, gv);
+        }
+        return gv;
+    }
+
+    /** Advance width of text in FONT at unit scale, for bounds that have no graphics to ask. */
+    static synchronized float width(String text) {
+        Float w = widths.get(text);
+        if (w == null) {
+            w = (float) FONT.getStringBounds(text, MEASURE).getWidth();
+            widths.put(text, w);
+        }
+        return w;
+    }
+
+    static synchronized void clear() {
+        cache.clear();
+        widths.clear();
+    }
+
+    private static final class Key {
+        final String text;
+        final Font font;
+        final int band;
+        final boolean antiAliased, fractional;
+        final int hash;
+
+        Key(String text, Font font, int band, boolean antiAliased, boolean fractional) {
+            this.text = text;
+            this.font = font;
+            this.band = band;
+            this.antiAliased = antiAliased;
+            this.fractional = fractional;
+            this.hash = Objects.hash(text, font, band, antiAliased, fractional);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return band == k.band && antiAliased == k.antiAliased && fractional == k.fractional
+                    && text.equals(k.text) && font.equals(k.font);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
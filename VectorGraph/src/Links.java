@@ -0,0 +1,235 @@
+import java.util.*;
+
+/**
+ * Attachments of line ends and polygon vertices to points. An attached end always sits on its
+ * point. Each point keeps a transient list of the objects attached to it, so moving points only
+ * revisits those objects. Links are plain object references, which Java serialization keeps within
+ * one saved list; relink rebuilds the reverse lists after loading, undo or a mirror snapshot.
+ * Only objects in the same list (the scene, or one group's children) are linked.
+ */
+class Links {
+    /** The end (line: 0 or 1, polygon: vertex index) a resize handle moves, or -1. */
+    static int endFor(Source.GraphObject o, Source.Handle h) {
+        if (o instanceof Source.GLine) return h == Source.Handle.P1 ? 0 : h == Source.Handle.P2 ? 1 : -1;
+        if (o instanceof Source.GPolygon) {
+            int i = h.ordinal() - Source.Handle.VERTEX_0.ordinal();
+            return i >= 0 && i < ((Source.GPolygon) o).pts.size() ? i : -1;
+        }
+        return -1;
+    }
+
+    static Source.GPoint anchor(Source.GraphObject o, int end) {
+        if (o instanceof Source.GLine) return end == 0 ? ((Source.GLine) o).start : ((Source.GLine) o).end;
+        if (o instanceof Source.GPolygon) {
+            Source.GPoint[] a = ((Source.GPolygon) o).anchors;
+            return a == null ? null : a[end];
+        }
+        return null;
+    }
+
+    private static int ends(Source.GraphObject o) {
+        if (o instanceof Source.GLine) return 2;
+        if (o instanceof Source.GPolygon) return ((Source.GPolygon) o).anchors == null ? 0 : ((Source.GPolygon) o).pts.size();
+        return 0;
+    }
+
+    private static void setAnchor(Source.GraphObject o, int end, Source.GPoint p) {
+        if (o instanceof Source.GLine) {
+            if (end == 0) ((Source.GLine) o).start = p; else ((Source.GLine) o).end = p;
+        } else if (o instanceof Source.GPolygon) {
+            Source.GPolygon g = (Source.GPolygon) o;
+            if (g.anchors == null) { if (p == null) return; g.anchors = new Source.GPoint[g.pts.size()]; }
+            g.anchors[end] = p;
+        }
+    }
+
+    /** Attaches an end to p and moves it onto p. */
+    static void attach(Source.GraphObject o, int end, Source.GPoint p) {
+        detach(o, end);
+        boolean listed = dependsOn(o, p);
+        setAnchor(o, end, p);
+        if (!listed) addDependent(p, o);
+        snap(o);
+    }
+
+    static void detach(Source.GraphObject o, int end) {
+        Source.GPoint p = anchor(o, end);
+        if (p == null) return;
+        setAnchor(o, end, null);
+        if (!dependsOn(o, p)) removeDependent(p, o);
+    }
+
+    /** A point is going away: everything attached to it lets go and keeps its current position. */
+    static void detachAll(Source.GPoint p) {
+        if (p.dependents == null) return;
+        for (Source.GraphObject o : p.dependents) {
+            for (int e = 0, n = ends(o); e < n; e++) if (anchor(o, e) == p) setAnchor(o, e, null);
+        }
+        p.dependents = null;
+    }
+
+    /**
+     * Objects are leaving the scene: points let go of what is attached to them and attached objects
+     * are dropped from their points' lists, one pass per point. Returns the objects that stay but
+     * were attached to a removed point.
+     */
+    static List<Source.GraphObject> removed(Collection<? extends Source.GraphObject> gone) {
+        Set<Source.GraphObject> set = Collections.newSetFromMap(new IdentityHashMap<>());
+        set.addAll(gone);
+        Set<Source.GPoint> points = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Source.GraphObject> released = new ArrayList<>();
+        for (Source.GraphObject o : gone) {
+            if (o instanceof Source.GPoint) {
+                Source.GPoint p = (Source.GPoint) o;
+                if (p.dependents != null) for (Source.GraphObject d : p.dependents) if (!set.contains(d)) released.add(d);
+                detachAll(p);
+            } else {
+                for (int e = 0, n = ends(o); e < n; e++) if (anchor(o, e) != null) points.add(anchor(o, e));
+            }
+        }
+        for (Source.GPoint p : points) {
+            if (p.dependents == null) continue;
+            p.dependents.removeIf(set::contains);
+            if (p.dependents.isEmpty()) p.dependents = null;
+        }
+        return released;
+    }
+
+    /** True when o is attached to a selected point, so it moves whenever the selection does. */
+    static boolean followsSelection(Source.GraphObject o) {
+        if (o instanceof Source.GLine) {
+            Source.GLine l = (Source.GLine) o;
+            return (l.start != null && l.start.isSelected) || (l.end != null && l.end.isSelected);
+        }
+        if (o instanceof Source.GPolygon && ((Source.GPolygon) o).anchors != null) {
+            for (Source.GPoint p : ((Source.GPolygon) o).anchors) if (p != null && p.isSelected) return true;
+        }
+        return false;
+    }
+
+    static boolean isLinked(Source.GraphObject o) {
+        for (int e = 0, n = ends(o); e < n; e++) if (anchor(o, e) != null) return true;
+        return false;
+    }
+
+    /**
+     * After moving or transforming objects: puts the attached ends of the objects themselves back
+     * on their points and moves everything attached to the moved points. Returns every object that
+     * was snapped; the ones not in moved are all that needs repainting beyond the edit itself.
+     */
+    static Set<Source.GraphObject> settle(Collection<? extends Source.GraphObject> moved) {
+        Set<Source.GraphObject> followed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Source.GraphObject o : moved) {
+            if (o instanceof Source.GPoint) {
+                List<Source.GraphObject> deps = ((Source.GPoint) o).dependents;
+                if (deps != null) for (Source.GraphObject d : deps) followed.add(d);
+            } else if (isLinked(o)) followed.add(o);
+        }
+        if (followed.isEmpty()) return followed;
+        for (Source.GraphObject d : followed) snap(d);
+        return followed;
+    }
+
+    /** Registers o with the points it is attached to and snaps it onto them. */
+    static void link(Source.GraphObject o) {
+        boolean linked = false;
+        for (int e = 0, n = ends(o); e < n; e++) {
+            Source.GPoint p = anchor(o, e);
+            if (p != null) { addDependent(p, o); linked = true; }
+        }
+        if (linked) snap(o);
+    }
+
+    /** Rebuilds every point's dependents from the links in objects (and inside groups) and snaps attached ends. */
+    static void relink(List<Source.GraphObject> objects) {
+        for (Source.GraphObject o : objects) if (o instanceof Source.GPoint) ((Source.GPoint) o).dependents = null;
+        for (Source.GraphObject o : objects) {
+            if (o instanceof Source.GGroup) relink(((Source.GGroup) o).children);
+            else link(o);
+        }
+    }
+
+    /** Copies a list of objects so links between them point at the copies; links to objects outside the list are cut. */
+    static ArrayList<Source.GraphObject> copyScene(List<Source.GraphObject> objects) {
+        ArrayList<Source.GraphObject> out = new ArrayList<>(objects.size());
+        IdentityHashMap<Source.GraphObject, Source.GraphObject> copies = null;
+        boolean linked = false;
+        for (Source.GraphObject o : objects) {
+            Source.GraphObject c = o.copy();
+            out.add(c);
+            if (o instanceof Source.GPoint && ((Source.GPoint) o).dependents != null) {
+                if (copies == null) copies = new IdentityHashMap<>();
+                copies.put(o, c);
+            } else if (!linked && isLinked(o)) linked = true;
+        }
+        if (copies == null && !linked) return out;
+        IdentityHashMap<Source.GraphObject, Source.GraphObject> map = copies != null ? copies : new IdentityHashMap<>();
+        for (Source.GraphObject c : out) remap(c, p -> (Source.GPoint) map.get(p));
+        relink(out);
+        return out;
+    }
+
+    /** Replaces each anchor of o with f(anchor); a null result detaches that end. */
+    static void remap(Source.GraphObject o, java.util.function.UnaryOperator<Source.GPoint> f) {
+        for (int e = 0, n = ends(o); e < n; e++) {
+            Source.GPoint p = anchor(o, e);
+            if (p != null) setAnchor(o, e, f.apply(p));
+        }
+    }
+
+    /** Cuts links between objects inside the collection and objects outside it (before grouping); returns the outside ones cut. */
+    static List<Source.GraphObject> detachAcross(Collection<Source.GraphObject> inside) {
+        List<Source.GraphObject> outside = new ArrayList<>();
+        Set<Source.GraphObject> in = Collections.newSetFromMap(new IdentityHashMap<>());
+        in.addAll(inside);
+        for (Source.GraphObject o : inside) {
+            for (int e = 0, n = ends(o); e < n; e++) {
+                Source.GPoint p = anchor(o, e);
+                if (p != null && !in.contains(p)) detach(o, e);
+            }
+            if (o instanceof Source.GPoint && ((Source.GPoint) o).dependents != null) {
+                for (Source.GraphObject d : new ArrayList<>(((Source.GPoint) o).dependents)) {
+                    if (in.contains(d)) continue;
+                    for (int e = 0, n = ends(d); e < n; e++) if (anchor(d, e) == o) detach(d, e);
+                    outside.add(d);
+                }
+            }
+        }
+        return outside;
+    }
+
+    /** Moves the attached ends of o onto their points. */
+    static void snap(Source.GraphObject o) {
+        if (o instanceof Source.GLine) {
+            Source.GLine l = (Source.GLine) o;
+            if (l.start != null) { l.x1 = l.start.x; l.y1 = l.start.y; }
+            if (l.end != null) { l.x2 = l.end.x; l.y2 = l.end.y; }
+            l.rebuildShape();
+        } else if (o instanceof Source.GPolygon && ((Source.GPolygon) o).anchors != null) {
+            Source.GPolygon g = (Source.GPolygon) o;
+            for (int i = 0; i < g.anchors.length && i < g.pts.size(); i++) {
+                Source.GPoint p = g.anchors[i];
+                if (p != null) { g.pts.get(i).x = p.x; g.pts.get(i).y = p.y; }
+            }
+            g.rebuildPath();
+        }
+    }
+
+    private static boolean dependsOn(Source.GraphObject o, Source.GPoint p) {
+        for (int e = 0, n = ends(o); e < n; e++) if (anchor(o, e) == p) return true;
+        return false;
+    }
+
+    // Callers add all ends of an object together, so a repeat can only be the last entry
+    private static void addDependent(Source.GPoint p, Source.GraphObject o) {
+        if (p.dependents == null) p.dependents = new ArrayList<>(4);
+        else if (p.dependents.get(p.dependents.size() - 1) == o) return;
+        p.dependents.add(o);
+    }
+
+    private static void removeDependent(Source.GPoint p, Source.GraphObject o) {
+        if (p.dependents == null) return;
+        for (int i = p.dependents.size() - 1; i >= 0; i--) if (p.dependents.get(i) == o) p.dependents.remove(i);
+        if (p.dependents.isEmpty()) p.dependents = null;
+    }
+}
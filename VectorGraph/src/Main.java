@@ -1,15 +1,64 @@
 import javax.swing.*;
+import java.io.File;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
 
 public class Main {
+    /** Exits once the window is up and the document is showing; used to record a CDS archive. */
+    static final String CDS_TRAINING = "--cds-training";
+    /** --publish=[ADDRESS:]PORT serves the document to mirror viewers; --follow=HOST:PORT opens a viewer instead. */
+    static final String PUBLISH = "--publish=", FOLLOW = "--follow=";
+
     public static void main(String[] args) {
+        boolean training = false;
+        File file = null;
+        String publish = null;
+        String follow = null;
+        for (String a : args) {
+            if (a.equals(CDS_TRAINING)) training = true;
+            else if (a.startsWith(PUBLISH)) publish = a.substring(PUBLISH.length());
+            else if (a.startsWith(FOLLOW)) follow = a.substring(FOLLOW.length());
+            else file = new File(a);
+        }
+
+        // Parse the document on a worker thread while the look and feel and the window are built
+        CompletableFuture<ArrayList<Source.GraphObject>> pending = null;
+        boolean paged = file != null && file.getName().toLowerCase().endsWith(PagedGraph.EXTENSION);
+        if (file != null && !paged) {
+            File f = file;
+            pending = CompletableFuture.supplyAsync(() -> {
+                try { return Source.readGraph(f); }
+                catch (java.io.IOException ex) { throw new UncheckedIOException(ex); }
+                catch (ClassNotFoundException ex) { throw new IllegalStateException(ex); }
+            });
+        }
+
         try {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
-            java.awt.EventQueue.invokeLater(() -> new Source().setVisible(true));
-
         }
         catch (ClassNotFoundException | InstantiationException | IllegalAccessException | UnsupportedLookAndFeelException ex) {
 
         }
 
+        File f = file;
+        CompletableFuture<ArrayList<Source.GraphObject>> loading = pending;
+        boolean exitWhenShown = training;
+        String address = publish;
+        String target = follow;
+        boolean openPaged = paged;
+        java.awt.EventQueue.invokeLater(() -> {
+            Source source = new Source();
+            source.setVisible(true);
+            if (target != null) source.followMirror(target);
+            if (address != null) {
+                try { source.startPublishing(address); }
+                catch (java.io.IOException | NumberFormatException ex) { JOptionPane.showMessageDialog(source, "Cannot publish on " + address + ": " + ex.getMessage()); }
+            }
+            Runnable done = exitWhenShown ? () -> SwingUtilities.invokeLater(() -> System.exit(0)) : null;
+            if (openPaged) source.openPaged(f); // only the index is read up front
+            if (loading != null) source.openWhenLoaded(f, loading, done);
+            else if (done != null) done.run();
+        });
     }
 }
@@ -0,0 +1,153 @@
+import java.awt.*;
+import java.awt.font.GlyphVector;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pre-rasterised GPoint crosses at the current device scale. Runs of consecutive points are
+ * blitted instead of stroked; long runs are written straight into an int[] layer that is
+ * composited with a single drawImage, so per-point Java2D state changes disappear.
+ */
+class MarkerAtlas {
+    /** Runs at least this long go through the pixel buffer instead of one drawImage per point. */
+    static final int BATCH_THRESHOLD = 256;
+    /** Labels smaller than this on screen are unreadable and skipped. */
+    static final double LABEL_MIN_PX = 4;
+
+    private static final Map<String, Sprite> sprites = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Sprite> eldest) {
+            return size() > 32;
+        }
+    };
+
+    private static BufferedImage layer;
+    private static int[] layerPixels;
+
+    static final class Sprite {
+        final BufferedImage image;
+        final int[] pixels;
+        final int size, half;
+
+        Sprite(BufferedImage image, int half) {
+            this.image = image;
+            this.pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            this.size = image.getWidth();
+            this.half = half;
+        }
+    }
+
+    /** True when the device transform only translates and scales uniformly, so sprites line up. */
+    static boolean supports(AffineTransform dev) {
+        int t = dev.getType();
+        if ((t & (AffineTransform.TYPE_GENERAL_ROTATION | AffineTransform.TYPE_QUADRANT_ROTATION
+                | AffineTransform.TYPE_GENERAL_TRANSFORM | AffineTransform.TYPE_FLIP)) != 0) return false;
+        return Math.abs(dev.getScaleX() - dev.getScaleY()) < 1e-9;
+    }
+
+    static synchronized Sprite sprite(boolean selected, float stroke, double scale) {
+        String key = selected + ":" + stroke + ":" + scale;
+        Sprite s = sprites.get(key);
+        if (s == null) {
+            int half = (int) Math.ceil((4 + stroke / 2.0) * scale) + 1;
+            BufferedImage img = new BufferedImage(half * 2 + 1, half * 2 + 1, BufferedImage.TYPE_INT_ARGB_PRE);
+            Graphics2D g = img.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.translate(half + 0.5, half + 0.5);
+            g.scale(scale, scale);
+            g.setColor(selected ? Color.BLUE : Color.RED);
+            g.setStroke(new BasicStroke(stroke, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+            g.drawLine(-4, -4, 4, 4);
+            g.drawLine(-4, 4, 4, -4);
+            g.dispose();
+            s = new Sprite(img, half);
+            sprites.put(key, s);
+        }
+        return s;
+    }
+
+    /**
+     * Draws objects[from, to), all GPoints, with g2d currently in world space.
+     * {@code device} is the area of the device surface this paint can touch.
+     */
+    static void drawRun(Graphics2D g2d, List<? extends Source.GraphObject> objects, int from, int to, Rectangle device) {
+        AffineTransform dev = g2d.getTransform();
+        double scale = dev.getScaleX();
+        Point2D.Double p = new Point2D.Double();
+        g2d.setTransform(new AffineTransform());
+        // Neighbouring points nearly always share a style, so the cache is only asked when it changes
+        Sprite s = null;
+        boolean selected = false;
+        float stroke = 0;
+
+        if (to - from >= BATCH_THRESHOLD) {
+            int[] dst = layerFor(device.width, device.height);
+            int w = device.width, h = device.height;
+            Arrays.fill(dst, 0, w * h, 0);
+            for (int i = from; i < to; i++) {
+                Source.GPoint pt = (Source.GPoint) objects.get(i);
+                if (s == null || pt.isSelected != selected || pt.strokeWidth != stroke) s = sprite(selected = pt.isSelected, stroke = pt.strokeWidth, scale);
+                p.setLocation(pt.x, pt.y); dev.transform(p, p);
+                blit(s, dst, w, h, (int) Math.floor(p.x) - device.x - s.half, (int) Math.floor(p.y) - device.y - s.half);
+            }
+            g2d.drawImage(layer, device.x, device.y, null);
+        } else {
+            for (int i = from; i < to; i++) {
+                Source.GPoint pt = (Source.GPoint) objects.get(i);
+                if (s == null || pt.isSelected != selected || pt.strokeWidth != stroke) s = sprite(selected = pt.isSelected, stroke = pt.strokeWidth, scale);
+                p.setLocation(pt.x, pt.y); dev.transform(p, p);
+                int x = (int) Math.floor(p.x) - s.half, y = (int) Math.floor(p.y) - s.half;
+                if (x + s.size < device.x || y + s.size < device.y || x > device.x + device.width || y > device.y + device.height) continue;
+                g2d.drawImage(s.image, x, y, null);
+            }
+        }
+
+        g2d.setTransform(dev);
+        float fontSize = g2d.getFont().getSize2D();
+        if (fontSize * scale < LABEL_MIN_PX) return;
+        g2d.setColor(Color.BLACK);
+        Rectangle clip = g2d.getClipBounds();
+        for (int i = from; i < to; i++) {
+            Source.GPoint pt = (Source.GPoint) objects.get(i);
+            if (clip != null && (pt.x + 6 > clip.getMaxX() || pt.y - 6 < clip.y || pt.y - 6 - fontSize > clip.getMaxY())) continue;
+            GlyphVector gv = LabelCache.glyphs(g2d, pt.name);
+            if (clip != null && pt.x + 6 + gv.getLogicalBounds().getWidth() < clip.x) continue;
+            g2d.drawGlyphVector(gv, (float) (pt.x + 6), (float) (pt.y - 6));
+        }
+    }
+
+    private static int[] layerFor(int w, int h) {
+        if (layer == null || layer.getWidth() != w || layer.getHeight() != h) {
+            layer = new BufferedImage(Math.max(w, 1), Math.max(h, 1), BufferedImage.TYPE_INT_ARGB_PRE);
+            layerPixels = ((DataBufferInt) layer.getRaster().getDataBuffer()).getData();
+        }
+        return layerPixels;
+    }
+
+    /** Source-over of a premultiplied sprite into a premultiplied w x h buffer, clipped to its edges. */
+    private static void blit(Sprite s, int[] dst, int w, int h, int x0, int y0) {
+        int sx0 = Math.max(0, -x0), sy0 = Math.max(0, -y0);
+        int sx1 = Math.min(s.size, w - x0), sy1 = Math.min(s.size, h - y0);
+        for (int sy = sy0; sy < sy1; sy++) {
+            int si = sy * s.size, di = (y0 + sy) * w + x0;
+            for (int sx = sx0; sx < sx1; sx++) {
+                int src = s.pixels[si + sx];
+                int sa = src >>> 24;
+                if (sa == 0) continue;
+                if (sa == 255) { dst[di + sx] = src; continue; }
+                int d = dst[di + sx], inv = 255 - sa;
+                int a = sa + ((d >>> 24) * inv + 127) / 255;
+                int r = ((src >> 16) & 0xff) + (((d >> 16) & 0xff) * inv + 127) / 255;
+                int g = ((src >> 8) & 0xff) + (((d >> 8) & 0xff) * inv + 127) / 255;
+                int b = (src & 0xff) + ((d & 0xff) * inv + 127) / 255;
+                dst[di + sx] = (a << 24) | (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+}
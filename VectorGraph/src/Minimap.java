@@ -0,0 +1,307 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Overview of the whole drawing with the canvas viewport drawn on top; click or drag to move the view.
+ * A scene snapshot (see SceneModel) is rendered on a background thread into an image pyramid
+ * (each level half the size of the one before). Scene events only mark world-space regions dirty; those regions are redrawn
+ * in the base level and box-filtered down. Painting the minimap is then one scaled drawImage.
+ */
+class Minimap extends JComponent implements Source.SceneListener {
+    /** Longest side of the base level, in pixels. */
+    static final int BASE = 1024;
+    /** Levels stop halving once they are this small. */
+    static final int SMALLEST = 64;
+    /** Edits arriving within this window are drawn in one pass. */
+    static final int UPDATE_DELAY_MS = 100;
+
+    private final Source.GraphCanvas canvas;
+    private final Supplier<List<Source.GraphObject>> scene;
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "minimap");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    /** Written by the worker, read when painting; a pyramid is replaced whole on a full rebuild. */
+    private volatile Pyramid pyramid;
+
+    // EDT-only bookkeeping of what the next update has to redraw
+    private Rectangle2D dirty;
+    private boolean fullRebuild = true, scheduled;
+    private Source.GraphObject lastChanged;
+    private Rectangle2D lastChangedBounds;
+
+    private static final class Pyramid {
+        final Rectangle2D extent;
+        final double scale;
+        final BufferedImage[] levels;
+
+        Pyramid(Rectangle2D extent, double scale, BufferedImage[] levels) {
+            this.extent = extent;
+            this.scale = scale;
+            this.levels = levels;
+        }
+    }
+
+    Minimap(Source.GraphCanvas canvas, Supplier<List<Source.GraphObject>> scene) {
+        this.canvas = canvas;
+        this.scene = scene;
+        setPreferredSize(new Dimension(200, 150));
+        setToolTipText("Click or drag to move the view");
+        MouseAdapter nav = new MouseAdapter() {
+            @Override public void mousePressed(MouseEvent e) { centreOn(e.getPoint()); }
+            @Override public void mouseDragged(MouseEvent e) { centreOn(e.getPoint()); }
+        };
+        addMouseListener(nav);
+        addMouseMotionListener(nav);
+    }
+
+    /** Redraws everything, for example after a whole scene was swapped in without events. */
+    void rebuild() {
+        fullRebuild = true;
+        schedule();
+    }
+
+    // --- Scene events (EDT) ---
+
+    @Override public void added(int index, Source.GraphObject o) { markDirty(bounds(o)); }
+    @Override public void removed(Collection<? extends Source.GraphObject> objs) { for (Source.GraphObject o : objs) markDirty(bounds(o)); }
+    @Override public void restyled(Source.GraphObject o) { markDirty(bounds(o)); }
+    @Override public void reordered(int from, List<Source.GraphObject> now) { for (Source.GraphObject o : now) markDirty(bounds(o)); }
+    @Override public void reset(List<Source.GraphObject> all) { rebuild(); }
+
+    @Override
+    public void moved(Collection<? extends Source.GraphObject> objs, double dx, double dy) {
+        for (Source.GraphObject o : objs) {
+            Rectangle2D b = bounds(o);
+            markDirty(b);
+            markDirty(new Rectangle2D.Double(b.getX() - dx, b.getY() - dy, b.getWidth(), b.getHeight()));
+            markFollowers(o);
+        }
+    }
+
+    @Override
+    public void transformed(Collection<? extends Source.GraphObject> objs, AffineTransform at) {
+        AffineTransform inverse;
+        try { inverse = at.createInverse(); } catch (NoninvertibleTransformException ex) { rebuild(); return; }
+        for (Source.GraphObject o : objs) {
+            Rectangle2D b = bounds(o);
+            markDirty(b);
+            markDirty(inverse.createTransformedShape(b).getBounds2D());
+            markFollowers(o);
+        }
+    }
+
+    /**
+     * moved() and transformed() arrive before Links.settle snaps what is attached to the points, so
+     * the lines and polygons that follow a point still lie where they were drawn: their old extent.
+     */
+    private void markFollowers(Source.GraphObject o) {
+        if (!(o instanceof Source.GPoint)) return;
+        List<Source.GraphObject> deps = ((Source.GPoint) o).dependents;
+        if (deps != null) for (Source.GraphObject d : deps) markDirty(bounds(d));
+    }
+
+    /** Where followers went after snapping; where they came from was marked by markFollowers. */
+    @Override
+    public void reshaped(Collection<? extends Source.GraphObject> objs) {
+        for (Source.GraphObject o : objs) markDirty(bounds(o));
+    }
+
+    /** A resize only reports the new geometry; during a drag the previous frame's bounds cover the old one. */
+    @Override
+    public void changed(Source.GraphObject o) {
+        Rectangle2D b = bounds(o);
+        markDirty(b);
+        if (o == lastChanged) markDirty(lastChangedBounds);
+        lastChanged = o;
+        lastChangedBounds = b;
+    }
+
+    private static Rectangle2D bounds(Source.GraphObject o) {
+        Rectangle2D b = o.getBounds();
+        double pad = o.strokeWidth + 8;
+        return new Rectangle2D.Double(b.getX() - pad, b.getY() - pad, b.getWidth() + 2 * pad, b.getHeight() + 2 * pad);
+    }
+
+    private void markDirty(Rectangle2D world) {
+        Pyramid p = pyramid;
+        if (p == null || !p.extent.contains(world)) fullRebuild = true;
+        else if (dirty == null) dirty = (Rectangle2D) world.clone();
+        else dirty.add(world);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled) return;
+        scheduled = true;
+        worker.execute(this::update);
+    }
+
+    // --- Rendering (worker thread) ---
+
+    private void update() {
+        try { Thread.sleep(UPDATE_DELAY_MS); } catch (InterruptedException ex) { return; }
+        AtomicReference<List<Source.GraphObject>> objects = new AtomicReference<>();
+        boolean[] full = new boolean[1];
+        Rectangle2D[] region = new Rectangle2D[1];
+        // The worker only ever draws the frozen copies taken here on the EDT, never live objects.
+        // The flags are handed over first, so a snapshot that fails leaves a full rebuild pending
+        // and later edits free to schedule it, instead of stopping updates for good.
+        try {
+            SwingUtilities.invokeAndWait(() -> {
+                scheduled = false;
+                full[0] = fullRebuild;
+                region[0] = dirty;
+                fullRebuild = true;
+                dirty = null;
+                objects.set(scene.get());
+                fullRebuild = false;
+            });
+        } catch (Exception ex) {
+            return;
+        }
+        if (full[0]) renderAll(objects.get());
+        else if (region[0] != null) render(pyramid, objects.get(), region[0]);
+        else return;
+        SwingUtilities.invokeLater(this::repaint);
+    }
+
+    private void renderAll(List<Source.GraphObject> objects) {
+        Rectangle2D extent = null;
+        for (Source.GraphObject o : objects) {
+            Rectangle2D b = bounds(o);
+            if (extent == null) extent = b; else extent.add(b);
+        }
+        if (extent == null) { pyramid = null; return; }
+        // Headroom so that ordinary edits near the edge do not force another full rebuild
+        double grow = Math.max(100, Math.max(extent.getWidth(), extent.getHeight()) * 0.1);
+        extent.setRect(extent.getX() - grow, extent.getY() - grow, extent.getWidth() + 2 * grow, extent.getHeight() + 2 * grow);
+        double scale = BASE / Math.max(extent.getWidth(), extent.getHeight());
+        int w = Math.max(1, (int) Math.ceil(extent.getWidth() * scale)), h = Math.max(1, (int) Math.ceil(extent.getHeight() * scale));
+        int count = 1;
+        for (int s = Math.max(w, h); s / 2 >= SMALLEST; s /= 2) count++;
+        BufferedImage[] levels = new BufferedImage[count];
+        for (int i = 0; i < count; i++) {
+            levels[i] = new BufferedImage(Math.max(1, w), Math.max(1, h), BufferedImage.TYPE_INT_RGB);
+            w = (w + 1) / 2;
+            h = (h + 1) / 2;
+        }
+        Pyramid p = new Pyramid(extent, scale, levels);
+        render(p, objects, extent);
+        pyramid = p;
+    }
+
+    private static void render(Pyramid p, List<Source.GraphObject> objects, Rectangle2D region) {
+        if (p == null) return;
+        BufferedImage base = p.levels[0];
+        int x0 = Math.max(0, (int) Math.floor((region.getMinX() - p.extent.getX()) * p.scale) - 1);
+        int y0 = Math.max(0, (int) Math.floor((region.getMinY() - p.extent.getY()) * p.scale) - 1);
+        int x1 = Math.min(base.getWidth(), (int) Math.ceil((region.getMaxX() - p.extent.getX()) * p.scale) + 1);
+        int y1 = Math.min(base.getHeight(), (int) Math.ceil((region.getMaxY() - p.extent.getY()) * p.scale) + 1);
+        if (x0 >= x1 || y0 >= y1) return;
+
+        Graphics2D g = base.createGraphics();
+        g.setClip(x0, y0, x1 - x0, y1 - y0);
+        g.setColor(Color.WHITE);
+        g.fillRect(x0, y0, x1 - x0, y1 - y0);
+        // No antialiasing: it is dozens of times slower for long thin strokes, and the pyramid levels shown are box-filtered anyway
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+        g.scale(p.scale, p.scale);
+        g.translate(-p.extent.getX(), -p.extent.getY());
+        Rectangle2D world = g.getClipBounds();
+        for (Source.GraphObject o : objects) if (o.getBounds().intersects(world)) o.drawPlain(g);
+        g.dispose();
+
+        for (int i = 1; i < p.levels.length; i++) {
+            x0 >>= 1; y0 >>= 1; x1 = (x1 + 1) >> 1; y1 = (y1 + 1) >> 1;
+            downsample(p.levels[i - 1], p.levels[i], x0, y0, Math.min(x1, p.levels[i].getWidth()), Math.min(y1, p.levels[i].getHeight()));
+        }
+    }
+
+    /** 2x2 box filter of src into dst over dst pixels [x0, x1) x [y0, y1). */
+    private static void downsample(BufferedImage src, BufferedImage dst, int x0, int y0, int x1, int y1) {
+        int[] s = ((DataBufferInt) src.getRaster().getDataBuffer()).getData();
+        int[] d = ((DataBufferInt) dst.getRaster().getDataBuffer()).getData();
+        int sw = src.getWidth(), sh = src.getHeight(), dw = dst.getWidth();
+        for (int y = y0; y < y1; y++) {
+            int sy0 = Math.min(2 * y, sh - 1), sy1 = Math.min(2 * y + 1, sh - 1);
+            for (int x = x0; x < x1; x++) {
+                int sx0 = Math.min(2 * x, sw - 1), sx1 = Math.min(2 * x + 1, sw - 1);
+                int a = s[sy0 * sw + sx0], b = s[sy0 * sw + sx1], c = s[sy1 * sw + sx0], e = s[sy1 * sw + sx1];
+                int r = (((a >> 16) & 0xff) + ((b >> 16) & 0xff) + ((c >> 16) & 0xff) + ((e >> 16) & 0xff) + 2) >> 2;
+                int gr = (((a >> 8) & 0xff) + ((b >> 8) & 0xff) + ((c >> 8) & 0xff) + ((e >> 8) & 0xff) + 2) >> 2;
+                int bl = ((a & 0xff) + (b & 0xff) + (c & 0xff) + (e & 0xff) + 2) >> 2;
+                d[y * dw + x] = (r << 16) | (gr << 8) | bl;
+            }
+        }
+    }
+
+    // --- Painting and navigation (EDT) ---
+
+    /** Maps world coordinates into this component, fitting the pyramid's extent. */
+    private AffineTransform toMinimap(Pyramid p) {
+        Rectangle2D e = p.extent;
+        double s = Math.min(getWidth() / e.getWidth(), getHeight() / e.getHeight());
+        AffineTransform at = AffineTransform.getTranslateInstance((getWidth() - e.getWidth() * s) / 2, (getHeight() - e.getHeight() * s) / 2);
+        at.scale(s, s);
+        at.translate(-e.getX(), -e.getY());
+        return at;
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        Graphics2D g2d = (Graphics2D) g;
+        g2d.setColor(new Color(245, 245, 245));
+        g2d.fillRect(0, 0, getWidth(), getHeight());
+        Pyramid p = pyramid;
+        if (p == null) return;
+        AffineTransform at = toMinimap(p);
+        Rectangle2D area = at.createTransformedShape(p.extent).getBounds2D();
+
+        // Smallest level that still has at least as many pixels as the area it fills
+        BufferedImage img = p.levels[0];
+        for (BufferedImage level : p.levels) if (level.getWidth() >= area.getWidth() && level.getHeight() >= area.getHeight()) img = level;
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2d.drawImage(img, (int) Math.round(area.getX()), (int) Math.round(area.getY()),
+                (int) Math.round(area.getWidth()), (int) Math.round(area.getHeight()), null);
+
+        try {
+            Rectangle2D view = canvas.getTransform().createInverse().createTransformedShape(new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight())).getBounds2D();
+            Rectangle2D r = at.createTransformedShape(view).getBounds2D();
+            g2d.setColor(new Color(0, 120, 255, 40));
+            g2d.fill(r);
+            g2d.setColor(new Color(0, 120, 255));
+            g2d.draw(r);
+        } catch (NoninvertibleTransformException ignored) {
+        }
+    }
+
+    private void centreOn(Point p) {
+        Pyramid pyr = pyramid;
+        if (pyr == null) return;
+        try {
+            Point2D w = toMinimap(pyr).inverseTransform(p, null);
+            canvas.translateX = canvas.getWidth() / 2.0 - w.getX() * canvas.scale;
+            canvas.translateY = canvas.getHeight() / 2.0 - w.getY() * canvas.scale;
+            canvas.repaint();
+        } catch (NoninvertibleTransformException ignored) {
+        }
+    }
+}
@@ -0,0 +1,371 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.geom.Rectangle2D;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Out-of-core drawings (.vgp) for browsing documents larger than the heap. Objects are ordered
+ * along a Hilbert curve over their centres and cut into pages of about PAGE_BYTES, so each page
+ * covers a compact area. A page index at the end of the file gives every page's offset, object
+ * count and bounds. The file is read through memory-mapped regions; only pages that intersect
+ * the viewport are decoded, on background threads, and decoded pages are kept in an LRU cache
+ * capped at CACHE_OBJECTS objects.
+ * <p>
+ * Layout: header (magic, page count, index offset, object count, world bounds), then the pages
+ * (each a Java serialization stream of its objects), then the index. Links between objects are
+ * not kept; attached ends are already where their points are. Converting a drawing needs it in
+ * memory once; {@code java PagedGraph drawing.graph drawing.vgp} does that on a bigger machine.
+ */
+class PagedGraph implements Closeable {
+    static final String EXTENSION = ".vgp";
+    private static final int MAGIC = 0x56475031; // "VGP1"
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 4 * 8;
+    private static final int INDEX_ENTRY_BYTES = 8 + 4 + 4 + 4 * 8;
+    /** Pages are closed once their encoding reaches this size. */
+    static final int PAGE_BYTES = 256 * 1024;
+    /** Upper bound on decoded objects held across all cached pages. */
+    static final int CACHE_OBJECTS = 1_000_000;
+    /** A single mapping can't exceed 2 GB; regions stay well below that and never split a page. */
+    private static final long MAX_REGION = 1L << 30;
+    private static final Logger logger = Logger.getLogger(PagedGraph.class.getName());
+
+    final int pageCount;
+    final long objectCount;
+    final Rectangle2D bounds;
+    private final long[] pageOffset;
+    private final int[] pageLength, pageObjects, pageRegion;
+    private final Rectangle2D[] pageBounds;
+    private final BoundsTree tree;
+    private final FileChannel channel;
+    private final List<MappedByteBuffer> regions = new ArrayList<>();
+    private final List<Long> regionStart = new ArrayList<>();
+
+    // EDT-only: decoded pages in access order, pages being decoded, and pages that could not be
+    private final LinkedHashMap<Integer, List<Source.GraphObject>> cache = new LinkedHashMap<>(64, 0.75f, true);
+    private final Set<Integer> loading = new HashSet<>(), failed = new HashSet<>();
+    /** Pages the latest draw wants decoded; replaced by each draw, never modified. Queued decodes of other pages are dropped. */
+    private volatile boolean[] wanted;
+    private long cachedObjects;
+    private Runnable onLoaded = () -> {};
+    private final ExecutorService decoder = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "page-decoder");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile boolean closed;
+
+    private PagedGraph(FileChannel channel) throws IOException {
+        this.channel = channel;
+        ByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+        if (head.getInt() != MAGIC) throw new IOException("Not a paged Vector-Graph drawing");
+        pageCount = head.getInt();
+        long indexOffset = head.getLong();
+        objectCount = head.getLong();
+        bounds = readRect(head);
+
+        ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, (long) pageCount * INDEX_ENTRY_BYTES);
+        pageOffset = new long[pageCount];
+        pageLength = new int[pageCount];
+        pageObjects = new int[pageCount];
+        pageRegion = new int[pageCount];
+        pageBounds = new Rectangle2D[pageCount];
+        for (int p = 0; p < pageCount; p++) {
+            pageOffset[p] = index.getLong();
+            pageLength[p] = index.getInt();
+            pageObjects[p] = index.getInt();
+            pageBounds[p] = readRect(index);
+        }
+        // Pages are written back to back, so regions are runs of consecutive pages
+        for (int p = 0; p < pageCount; p++) {
+            int r = regions.size() - 1;
+            if (r < 0 || pageOffset[p] + pageLength[p] - regionStart.get(r) > MAX_REGION) {
+                int last = p;
+                while (last + 1 < pageCount && pageOffset[last + 1] + pageLength[last + 1] - pageOffset[p] <= MAX_REGION) last++;
+                regionStart.add(pageOffset[p]);
+                regions.add(channel.map(FileChannel.MapMode.READ_ONLY, pageOffset[p], pageOffset[last] + pageLength[last] - pageOffset[p]));
+                r++;
+            }
+            pageRegion[p] = r;
+        }
+        tree = new BoundsTree(pageBounds);
+    }
+
+    static PagedGraph open(File f) throws IOException {
+        FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        try {
+            return new PagedGraph(ch);
+        } catch (IOException | RuntimeException ex) {
+            ch.close();
+            throw ex;
+        }
+    }
+
+    /** Called on the EDT whenever a requested page has been decoded. */
+    void setOnLoaded(Runnable r) {
+        onLoaded = r;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        decoder.shutdownNow();
+        cache.clear();
+        channel.close();
+    }
+
+    // --- Viewing (EDT) ---
+
+    /**
+     * Draws the pages that intersect view (world coordinates). Decoded pages draw their objects;
+     * the others show as a grey outline and are queued for decoding, nearest to the middle of the
+     * view first, as long as everything visible still fits in the cache. A page that fails to
+     * decode stays an outline and is not asked for again. Pages draw in file order, so objects
+     * from different pages can overlap in a different order than they did when editing.
+     */
+    void draw(Graphics2D g, Rectangle2D view) {
+        boolean[] hit = new boolean[pageCount];
+        if (tree.query(view, hit) == 0) return;
+        int n = 0;
+        int[] visible = new int[pageCount];
+        for (int p = 0; p < pageCount; p++) if (hit[p]) visible[n++] = p;
+        visible = Arrays.copyOf(visible, n);
+
+        double cx = view.getCenterX(), cy = view.getCenterY();
+        Integer[] byDistance = new Integer[n];
+        for (int i = 0; i < n; i++) byDistance[i] = visible[i];
+        Arrays.sort(byDistance, Comparator.comparingDouble(p -> {
+            double dx = pageBounds[p].getCenterX() - cx, dy = pageBounds[p].getCenterY() - cy;
+            return dx * dx + dy * dy;
+        }));
+        long budget = CACHE_OBJECTS;
+        boolean[] shown = new boolean[pageCount];
+        for (int p : byDistance) {
+            if (budget < pageObjects[p]) break;
+            budget -= pageObjects[p];
+            shown[p] = true;
+        }
+        wanted = shown; // before requesting, so the decoders never see an older frame's pages
+        for (int p : byDistance) {
+            if (shown[p] && cache.get(p) == null && !failed.contains(p)) request(p); // get() also marks the page as recently used
+        }
+
+        Rectangle clip = g.getClipBounds();
+        Stroke stroke = g.getStroke();
+        for (int p : visible) {
+            List<Source.GraphObject> objects = shown[p] ? cache.get(p) : null;
+            if (objects == null) {
+                g.setColor(new Color(210, 210, 210));
+                g.setStroke(new BasicStroke(0));
+                g.draw(pageBounds[p]);
+                g.setStroke(stroke);
+                continue;
+            }
+            for (Source.GraphObject o : objects) if (clip == null || o.getBounds().intersects(clip)) o.drawPlain(g);
+        }
+    }
+
+    /** Pages in view that are not decoded yet. */
+    int pending() {
+        return loading.size();
+    }
+
+    private void request(int p) {
+        if (!loading.add(p)) return;
+        decoder.execute(() -> {
+            if (closed) return;
+            // Panning queues pages faster than they decode; skip the ones that have left the view
+            if (!wanted[p]) {
+                SwingUtilities.invokeLater(() -> dropped(p));
+                return;
+            }
+            try {
+                List<Source.GraphObject> objects = decode(p);
+                SwingUtilities.invokeLater(() -> loaded(p, objects));
+            } catch (IOException | ClassNotFoundException | RuntimeException ex) {
+                SwingUtilities.invokeLater(() -> failed(p, ex));
+            }
+        });
+    }
+
+    private void dropped(int p) {
+        loading.remove(p);
+        // A draw between the check and now may have wanted it back while it still counted as loading
+        if (!closed && wanted[p]) request(p);
+    }
+
+    /** Leaves the page uncached, so it keeps drawing as an outline; only the first failure is logged. */
+    private void failed(int p, Exception ex) {
+        loading.remove(p);
+        if (closed) return;
+        if (failed.isEmpty()) logger.log(Level.WARNING, "Cannot decode page " + p + "; unreadable pages are shown as outlines", ex);
+        failed.add(p);
+    }
+
+    private void loaded(int p, List<Source.GraphObject> objects) {
+        loading.remove(p);
+        if (closed) return;
+        cache.put(p, objects);
+        cachedObjects += objects.size();
+        Iterator<Map.Entry<Integer, List<Source.GraphObject>>> eldest = cache.entrySet().iterator();
+        while (cachedObjects > CACHE_OBJECTS && eldest.hasNext()) {
+            Map.Entry<Integer, List<Source.GraphObject>> e = eldest.next();
+            if (e.getKey() == p) continue;
+            cachedObjects -= e.getValue().size();
+            eldest.remove();
+        }
+        onLoaded.run();
+    }
+
+    private List<Source.GraphObject> decode(int p) throws IOException, ClassNotFoundException {
+        ByteBuffer b = regions.get(pageRegion[p]).duplicate();
+        int from = (int) (pageOffset[p] - regionStart.get(pageRegion[p]));
+        b.position(from).limit(from + pageLength[p]);
+        ArrayList<Source.GraphObject> out = new ArrayList<>(pageObjects[p]);
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new ByteBufferInput(b), 1 << 16))) {
+            for (int i = 0; i < pageObjects[p]; i++) {
+                Source.GraphObject o = (Source.GraphObject) in.readObject();
+                o.rebuildShape();
+                out.add(o);
+            }
+        }
+        return out;
+    }
+
+    private static final class ByteBufferInput extends InputStream {
+        private final ByteBuffer b;
+
+        ByteBufferInput(ByteBuffer b) { this.b = b; }
+
+        @Override public int read() { return b.hasRemaining() ? b.get() & 0xff : -1; }
+
+        @Override public int read(byte[] dst, int off, int len) {
+            if (!b.hasRemaining()) return -1;
+            len = Math.min(len, b.remaining());
+            b.get(dst, off, len);
+            return len;
+        }
+    }
+
+    // --- Writing ---
+
+    /** Writes objects (not modified) as a paged drawing. */
+    static void write(File f, List<Source.GraphObject> objects) throws IOException {
+        int n = objects.size();
+        Rectangle2D world = null;
+        double[] cx = new double[n], cy = new double[n];
+        for (int i = 0; i < n; i++) {
+            Rectangle2D b = objects.get(i).getBounds();
+            cx[i] = b.getCenterX();
+            cy[i] = b.getCenterY();
+            if (world == null) world = (Rectangle2D) b.clone(); else world.add(b);
+        }
+        if (world == null) world = new Rectangle2D.Double();
+        // Hilbert index of each centre on a 65536 x 65536 grid, packed above the object index
+        long[] order = new long[n];
+        double span = Math.max(world.getWidth(), world.getHeight());
+        double toGrid = span > 0 ? 65535 / span : 0;
+        for (int i = 0; i < n; i++) {
+            int gx = (int) ((cx[i] - world.getX()) * toGrid), gy = (int) ((cy[i] - world.getY()) * toGrid);
+            order[i] = (hilbert(gx, gy) << 31) | i;
+        }
+        Arrays.sort(order);
+
+        List<long[]> index = new ArrayList<>(); // offset, length, count
+        List<Rectangle2D> pageBounds = new ArrayList<>();
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(0);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(raf.getFD()), 1 << 16));
+            out.write(new byte[HEADER_BYTES]);
+            long offset = HEADER_BYTES;
+            ByteArrayOutputStream page = new ByteArrayOutputStream(PAGE_BYTES + PAGE_BYTES / 4);
+            ObjectOutputStream oo = null;
+            Rectangle2D pb = null;
+            int count = 0;
+            for (int k = 0; k <= n; k++) {
+                if (k == n || (oo != null && page.size() >= PAGE_BYTES)) {
+                    if (oo == null) break;
+                    oo.close();
+                    page.writeTo(out);
+                    index.add(new long[] { offset, page.size(), count });
+                    pageBounds.add(pb);
+                    offset += page.size();
+                    page.reset();
+                    oo = null;
+                    count = 0;
+                    if (k == n) break;
+                }
+                Source.GraphObject o = objects.get((int) (order[k] & 0x7fffffffL)).copy();
+                Links.remap(o, p -> null);
+                o.isSelected = false;
+                if (oo == null) { oo = new ObjectOutputStream(page); pb = null; }
+                oo.writeObject(o); // one stream per page, so class descriptors are written once per page
+                count++;
+                Rectangle2D b = o.getBounds();
+                double pad = o.strokeWidth + 8;
+                Rectangle2D padded = new Rectangle2D.Double(b.getX() - pad, b.getY() - pad, b.getWidth() + 2 * pad, b.getHeight() + 2 * pad);
+                if (pb == null) pb = padded; else pb.add(padded);
+            }
+            for (int p = 0; p < index.size(); p++) {
+                long[] e = index.get(p);
+                out.writeLong(e[0]);
+                out.writeInt((int) e[1]);
+                out.writeInt((int) e[2]);
+                writeRect(out, pageBounds.get(p));
+            }
+            out.flush();
+            raf.seek(0);
+            raf.writeInt(MAGIC);
+            raf.writeInt(index.size());
+            raf.writeLong(offset);
+            raf.writeLong(n);
+            raf.writeDouble(world.getX()); raf.writeDouble(world.getY()); raf.writeDouble(world.getWidth()); raf.writeDouble(world.getHeight());
+        }
+    }
+
+    /** Distance along a Hilbert curve of order 16 (standard xy-to-d conversion). */
+    private static long hilbert(int x, int y) {
+        long d = 0;
+        for (int s = 1 << 15; s > 0; s >>= 1) {
+            int rx = (x & s) > 0 ? 1 : 0, ry = (y & s) > 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            if (ry == 0) {
+                if (rx == 1) { x = s - 1 - x; y = s - 1 - y; }
+                int t = x; x = y; y = t;
+            }
+        }
+        return d;
+    }
+
+    private static Rectangle2D readRect(ByteBuffer b) {
+        return new Rectangle2D.Double(b.getDouble(), b.getDouble(), b.getDouble(), b.getDouble());
+    }
+
+    private static void writeRect(DataOutputStream out, Rectangle2D r) throws IOException {
+        out.writeDouble(r.getX()); out.writeDouble(r.getY()); out.writeDouble(r.getWidth()); out.writeDouble(r.getHeight());
+    }
+
+    /** Converts a .graph drawing: {@code java PagedGraph drawing.graph [drawing.vgp]}. */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: PagedGraph <drawing.graph> [out" + EXTENSION + "]");
+            System.exit(2);
+        }
+        File in = new File(args[0]);
+        File out = new File(args.length > 1 ? args[1] : args[0].replaceFirst("\\.graph$", "") + EXTENSION);
+        ArrayList<Source.GraphObject> objects = Source.readGraph(in);
+        write(out, objects);
+        try (PagedGraph g = open(out)) {
+            System.out.println(out + ": " + g.objectCount + " objects in " + g.pageCount + " pages");
+        }
+    }
+}
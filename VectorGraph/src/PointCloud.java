@@ -0,0 +1,278 @@
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Immutable packed point cloud: coordinates in one float[] (x, y pairs), optional per-point ARGB,
+ * and a uniform grid over the points for hit-testing and viewport culling. Instances are shared
+ * between copies of a GPointCloud, so undo snapshots cost nothing per point.
+ */
+class PointCloud {
+    /** Target points per grid cell; small enough for fast hit tests, large enough to keep the grid cheap. */
+    private static final int POINTS_PER_CELL = 16;
+    private static final int CHUNK = 1 << 16;
+
+    final float[] xy;
+    final int[] argb;
+    final int count;
+    final double minX, minY, maxX, maxY;
+
+    private final double cellSize;
+    private final int cols, rows;
+    private final int[] cellStart, order;
+
+    PointCloud(float[] xy, int[] argb, int count) {
+        this.xy = xy;
+        this.argb = argb;
+        this.count = count;
+        double x0 = Double.MAX_VALUE, y0 = Double.MAX_VALUE, x1 = -Double.MAX_VALUE, y1 = -Double.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            float x = xy[i * 2], y = xy[i * 2 + 1];
+            if (x < x0) x0 = x;
+            if (x > x1) x1 = x;
+            if (y < y0) y0 = y;
+            if (y > y1) y1 = y;
+        }
+        if (count == 0) { x0 = y0 = x1 = y1 = 0; }
+        minX = x0; minY = y0; maxX = x1; maxY = y1;
+
+        double w = Math.max(maxX - minX, 1e-6), h = Math.max(maxY - minY, 1e-6);
+        int cells = Math.max(1, count / POINTS_PER_CELL);
+        cellSize = Math.max(Math.sqrt(w * h / cells), Math.max(w, h) / 4096);
+        cols = (int) (w / cellSize) + 1;
+        rows = (int) (h / cellSize) + 1;
+
+        // Counting sort of point indices by cell, giving CSR-style cellStart/order arrays
+        cellStart = new int[cols * rows + 1];
+        int[] cellOf = new int[count];
+        for (int i = 0; i < count; i++) {
+            cellOf[i] = cell(xy[i * 2], xy[i * 2 + 1]);
+            cellStart[cellOf[i] + 1]++;
+        }
+        for (int c = 0; c < cols * rows; c++) cellStart[c + 1] += cellStart[c];
+        order = new int[count];
+        int[] fill = Arrays.copyOf(cellStart, cols * rows);
+        for (int i = 0; i < count; i++) order[fill[cellOf[i]]++] = i;
+    }
+
+    private int cell(double x, double y) {
+        int cx = Math.min(cols - 1, Math.max(0, (int) ((x - minX) / cellSize)));
+        int cy = Math.min(rows - 1, Math.max(0, (int) ((y - minY) / cellSize)));
+        return cy * cols + cx;
+    }
+
+    Rectangle2D bounds() {
+        return new Rectangle2D.Double(minX, minY, maxX - minX, maxY - minY);
+    }
+
+    boolean anyWithin(double x, double y, double r) {
+        if (x < minX - r || x > maxX + r || y < minY - r || y > maxY + r) return false;
+        int cx0 = Math.max(0, (int) ((x - r - minX) / cellSize)), cx1 = Math.min(cols - 1, (int) ((x + r - minX) / cellSize));
+        int cy0 = Math.max(0, (int) ((y - r - minY) / cellSize)), cy1 = Math.min(rows - 1, (int) ((y + r - minY) / cellSize));
+        double r2 = r * r;
+        for (int cy = cy0; cy <= cy1; cy++) {
+            for (int cx = cx0; cx <= cx1; cx++) {
+                int c = cy * cols + cx;
+                for (int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+                    int i = order[k];
+                    double dx = xy[i * 2] - x, dy = xy[i * 2 + 1] - y;
+                    if (dx * dx + dy * dy <= r2) return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Rasterises the points visible in a w x h device window into the calling thread's scratch
+     * image, whose top-left w x h pixels are valid on return. Several points landing on one pixel
+     * raise its opacity (density aggregation) and have their colours averaged, so a zoomed-out
+     * cloud reads as a density map rather than a solid blob. {@code toDevice} maps cloud
+     * coordinates to the window's pixel grid and must only translate and scale.
+     */
+    BufferedImage render(int w, int h, AffineTransform toDevice, int defaultArgb) {
+        Scratch s = SCRATCH.get();
+        s.ensure(w, h);
+        int[] dst = s.pixels, cnt = s.count, sr = s.red, sg = s.green, sb = s.blue;
+        int stride = s.image.getWidth();
+        for (int y = 0; y < h; y++) Arrays.fill(dst, y * stride, y * stride + w, 0);
+
+        double sx = toDevice.getScaleX(), sy = toDevice.getScaleY(), tx = toDevice.getTranslateX(), ty = toDevice.getTranslateY();
+        int radius = sx >= 4 ? 1 : 0;
+
+        // Visible part of the cloud in its own coordinates, so whole grid cells can be skipped
+        double wx0 = (0 - tx) / sx, wx1 = (w - tx) / sx, wy0 = (0 - ty) / sy, wy1 = (h - ty) / sy;
+        int cx0 = Math.max(0, (int) ((Math.min(wx0, wx1) - minX) / cellSize)), cx1 = Math.min(cols - 1, (int) ((Math.max(wx0, wx1) - minX) / cellSize));
+        int cy0 = Math.max(0, (int) ((Math.min(wy0, wy1) - minY) / cellSize)), cy1 = Math.min(rows - 1, (int) ((Math.max(wy0, wy1) - minY) / cellSize));
+
+        int dr = (defaultArgb >> 16) & 0xff, dg = (defaultArgb >> 8) & 0xff, db = defaultArgb & 0xff;
+        int maxCount = 0;
+        for (int cy = cy0; cy <= cy1; cy++) {
+            for (int cx = cx0; cx <= cx1; cx++) {
+                int c = cy * cols + cx;
+                for (int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+                    int i = order[k];
+                    int px = (int) Math.floor(xy[i * 2] * sx + tx), py = (int) Math.floor(xy[i * 2 + 1] * sy + ty);
+                    int r = dr, g = dg, b = db;
+                    if (argb != null) { int col = argb[i]; r = (col >> 16) & 0xff; g = (col >> 8) & 0xff; b = col & 0xff; }
+                    for (int oy = -radius; oy <= radius; oy++) {
+                        int yy = py + oy;
+                        if (yy < 0 || yy >= h) continue;
+                        for (int ox = -radius; ox <= radius; ox++) {
+                            int xx = px + ox;
+                            if (xx < 0 || xx >= w) continue;
+                            int p = yy * w + xx;
+                            int n = ++cnt[p];
+                            if (n > maxCount) maxCount = n;
+                            sr[p] += r; sg[p] += g; sb[p] += b;
+                        }
+                    }
+                }
+            }
+        }
+
+        double norm = Math.log1p(maxCount);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0, p = y * w; x < w; x++, p++) {
+                int n = cnt[p];
+                if (n == 0) continue;
+                int a = (int) (80 + 175 * Math.log1p(n) / norm);
+                int r = sr[p] / n * a / 255, g = sg[p] / n * a / 255, b = sb[p] / n * a / 255;
+                dst[y * stride + x] = (a << 24) | (r << 16) | (g << 8) | b;
+                cnt[p] = 0; sr[p] = 0; sg[p] = 0; sb[p] = 0;
+            }
+        }
+        return s.image;
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    /** Output image and per-pixel accumulators, grown on demand and reused between frames. */
+    private static final class Scratch {
+        BufferedImage image = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB_PRE);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        int[] count = new int[0], red = count, green = count, blue = count;
+
+        void ensure(int w, int h) {
+            if (image.getWidth() < w || image.getHeight() < h) {
+                image = new BufferedImage(Math.max(w, image.getWidth()), Math.max(h, image.getHeight()), BufferedImage.TYPE_INT_ARGB_PRE);
+                pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            }
+            if (count.length < w * h) {
+                count = new int[w * h]; red = new int[w * h]; green = new int[w * h]; blue = new int[w * h];
+            }
+        }
+    }
+
+    /** Copy with every coordinate mapped through {@code at}; colours are shared. */
+    PointCloud transformed(AffineTransform at) {
+        float[] out = new float[count * 2];
+        at.transform(xy, 0, out, 0, count);
+        return new PointCloud(out, argb, count);
+    }
+
+    // --- Packed binary form, used by GPointCloud's serialisation ---
+
+    void write(DataOutput out) throws IOException {
+        out.writeInt(count);
+        out.writeBoolean(argb != null);
+        ByteBuffer buf = ByteBuffer.allocate(CHUNK * 4);
+        for (int i = 0; i < count * 2; i += CHUNK) {
+            int n = Math.min(CHUNK, count * 2 - i);
+            buf.clear(); buf.asFloatBuffer().put(xy, i, n);
+            out.write(buf.array(), 0, n * 4);
+        }
+        if (argb != null) {
+            for (int i = 0; i < count; i += CHUNK) {
+                int n = Math.min(CHUNK, count - i);
+                buf.clear(); buf.asIntBuffer().put(argb, i, n);
+                out.write(buf.array(), 0, n * 4);
+            }
+        }
+    }
+
+    static PointCloud read(DataInput in) throws IOException {
+        int count = in.readInt();
+        boolean hasColor = in.readBoolean();
+        float[] xy = new float[count * 2];
+        int[] argb = hasColor ? new int[count] : null;
+        byte[] bytes = new byte[CHUNK * 4];
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        for (int i = 0; i < count * 2; i += CHUNK) {
+            int n = Math.min(CHUNK, count * 2 - i);
+            in.readFully(bytes, 0, n * 4);
+            buf.clear(); buf.asFloatBuffer().get(xy, i, n);
+        }
+        if (hasColor) {
+            for (int i = 0; i < count; i += CHUNK) {
+                int n = Math.min(CHUNK, count - i);
+                in.readFully(bytes, 0, n * 4);
+                buf.clear(); buf.asIntBuffer().get(argb, i, n);
+            }
+        }
+        return new PointCloud(xy, argb, count);
+    }
+
+    /**
+     * Reads a text point cloud (XYZ/CSV style): one point per line as "x y", "x y z",
+     * "x y r g b" or "x y z r g b", separated by spaces, tabs, commas or semicolons.
+     * Lines that don't start with two numbers (headers, comments) are skipped.
+     */
+    static PointCloud importText(File f) throws IOException {
+        float[] xy = new float[1 << 16];
+        int[] argb = null;
+        int n = 0;
+        double[] tok = new double[6];
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8), 1 << 16)) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                int k = tokenize(line, tok);
+                if (k < 2) continue;
+                if (n * 2 + 2 > xy.length) xy = Arrays.copyOf(xy, xy.length * 2);
+                xy[n * 2] = (float) tok[0];
+                xy[n * 2 + 1] = (float) tok[1];
+                boolean colored = k == 5 || k == 6;
+                if (colored && argb == null) {
+                    argb = new int[xy.length / 2];
+                    Arrays.fill(argb, 0, n, 0xff000000);
+                }
+                if (argb != null) {
+                    if (argb.length < xy.length / 2) argb = Arrays.copyOf(argb, xy.length / 2);
+                    int c = k - 3;
+                    argb[n] = colored ? 0xff000000 | (clamp(tok[c]) << 16) | (clamp(tok[c + 1]) << 8) | clamp(tok[c + 2]) : 0xff000000;
+                }
+                n++;
+            }
+        }
+        return new PointCloud(Arrays.copyOf(xy, n * 2), argb == null ? null : Arrays.copyOf(argb, n), n);
+    }
+
+    private static int clamp(double v) {
+        return (int) Math.max(0, Math.min(255, v));
+    }
+
+    private static int tokenize(String line, double[] out) {
+        int k = 0, i = 0, len = line.length();
+        while (i < len && k < out.length) {
+            while (i < len && isSeparator(line.charAt(i))) i++;
+            int start = i;
+            while (i < len && !isSeparator(line.charAt(i))) i++;
+            if (start == i) break;
+            try {
+                out[k++] = Double.parseDouble(line.substring(start, i));
+            } catch (NumberFormatException ex) {
+                return k - 1 >= 2 ? k - 1 : 0;
+            }
+        }
+        return k;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == ' ' || c == '\t' || c == ',' || c == ';';
+    }
+}
@@ -0,0 +1,543 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Live read-only mirror of a drawing over TCP. The publisher turns scene edits into small delta
+ * operations (add, remove, move, transform, restyle, change, reorder) and sends each late joiner
+ * a snapshot first. The subscriber applies the stream to its own canvas. Traffic is proportional
+ * to the edits, not the scene: a drag of an unchanged selection costs 17 bytes a frame.
+ */
+class SceneMirror {
+    static final int DEFAULT_PORT = 5151;
+    private static final int MAGIC = 0x56474D31; // "VGM1"
+
+    private static final byte RESET = 1, ADD = 2, REMOVE = 3, MOVE = 4, MOVE_SAME = 5, RESTYLE = 6, CHANGE = 7, REORDER = 8, TRANSFORM = 9;
+
+    /** Publishing side; register it as a scene listener on the editing window. Listener calls arrive on the EDT. */
+    static final class Publisher implements Source.SceneListener {
+        /** A client that falls this many operations behind is dropped rather than buffered without limit. */
+        private static final int MAX_BACKLOG = 100_000;
+
+        private final ServerSocket server;
+        private final java.util.function.Supplier<List<Source.GraphObject>> scene;
+        private final List<Client> clients = new CopyOnWriteArrayList<>();
+        private final IdentityHashMap<Source.GraphObject, Integer> ids = new IdentityHashMap<>();
+        private int nextId = 1;
+        private int[] lastMove;
+
+        /** Serves on port of the loopback interface only; see {@link #bindAddress} to serve other machines. */
+        Publisher(int port, java.util.function.Supplier<List<Source.GraphObject>> scene) throws IOException {
+            this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), scene);
+        }
+
+        Publisher(InetSocketAddress bind, java.util.function.Supplier<List<Source.GraphObject>> scene) throws IOException {
+            this.server = new ServerSocket();
+            server.bind(bind);
+            this.scene = scene;
+            Thread accept = new Thread(this::acceptLoop, "mirror-accept");
+            accept.setDaemon(true);
+            accept.start();
+        }
+
+        int port() {
+            return server.getLocalPort();
+        }
+
+        void close() {
+            try { server.close(); } catch (IOException ignored) {}
+            for (Client c : clients) c.close();
+        }
+
+        private void acceptLoop() {
+            while (!server.isClosed()) {
+                try {
+                    Socket s = server.accept();
+                    s.setTcpNoDelay(true);
+                    Client c = new Client(s);
+                    // The snapshot is taken on the EDT so it lines up exactly with the ops that follow it.
+                    // Only the newcomer gets it: the ids already handed out stay valid for everyone else.
+                    SwingUtilities.invokeLater(() -> {
+                        if (idle()) ids.clear(); // nobody holds these, and removals went unrecorded while idle
+                        lastMove = null; // the newcomer has no selection to repeat a move for
+                        c.send(encodeReset(scene.get()));
+                        clients.add(c);
+                    });
+                } catch (IOException ex) {
+                    if (!server.isClosed()) ex.printStackTrace();
+                }
+            }
+        }
+
+        private boolean idle() {
+            clients.removeIf(c -> c.closed);
+            return clients.isEmpty();
+        }
+
+        private int id(Source.GraphObject o) {
+            Integer id = ids.get(o);
+            if (id == null) { id = nextId++; ids.put(o, id); }
+            return id;
+        }
+
+        private void broadcast(Op op) {
+            byte[] bytes;
+            try {
+                ByteArrayOutputStream bo = new ByteArrayOutputStream(64);
+                DataOutputStream out = new DataOutputStream(bo);
+                op.write(out);
+                out.flush();
+                bytes = bo.toByteArray();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            for (Client c : clients) c.send(bytes);
+        }
+
+        private interface Op {
+            void write(DataOutputStream out) throws IOException;
+        }
+
+        private byte[] encodeReset(List<Source.GraphObject> all) {
+            try {
+                ByteArrayOutputStream bo = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bo);
+                out.writeByte(RESET);
+                writeVarInt(out, all.size());
+                for (Source.GraphObject o : all) writeVarInt(out, id(o));
+                writeBlob(out, new ArrayList<>(all));
+                out.flush();
+                return bo.toByteArray();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        @Override
+        public void added(int index, Source.GraphObject o) {
+            if (idle()) return;
+            int id = id(o);
+            broadcast(out -> { out.writeByte(ADD); writeVarInt(out, id); writeVarInt(out, index); writeObjectBlob(out, o); });
+        }
+
+        @Override
+        public void removed(Collection<? extends Source.GraphObject> objs) {
+            if (idle()) return;
+            int[] gone = new int[objs.size()];
+            int n = 0;
+            for (Source.GraphObject o : objs) { Integer id = ids.remove(o); if (id != null) gone[n++] = id; }
+            int[] sorted = Arrays.copyOf(gone, n);
+            broadcast(out -> { out.writeByte(REMOVE); writeIds(out, sorted); });
+        }
+
+        @Override
+        public void moved(Collection<? extends Source.GraphObject> objs, double dx, double dy) {
+            if (idle() || objs.isEmpty()) return;
+            int[] moved = new int[objs.size()];
+            int n = 0;
+            for (Source.GraphObject o : objs) moved[n++] = id(o);
+            Arrays.sort(moved);
+            if (Arrays.equals(moved, lastMove)) {
+                broadcast(out -> { out.writeByte(MOVE_SAME); out.writeDouble(dx); out.writeDouble(dy); });
+                return;
+            }
+            lastMove = moved;
+            broadcast(out -> { out.writeByte(MOVE); writeIds(out, moved); out.writeDouble(dx); out.writeDouble(dy); });
+        }
+
+        @Override
+        public void restyled(Source.GraphObject o) {
+            if (idle()) return;
+            int id = id(o), argb = o.color.getRGB();
+            float stroke = o.strokeWidth;
+            String name = o.name;
+            broadcast(out -> { out.writeByte(RESTYLE); writeVarInt(out, id); out.writeInt(argb); out.writeFloat(stroke); out.writeUTF(name); });
+        }
+
+        @Override
+        public void changed(Source.GraphObject o) {
+            if (idle()) return;
+            int id = id(o);
+            broadcast(out -> { out.writeByte(CHANGE); writeVarInt(out, id); writeObjectBlob(out, o); });
+        }
+
+        @Override
+        public void reordered(int from, List<Source.GraphObject> now) {
+            if (idle()) return;
+            int[] order = new int[now.size()];
+            for (int k = 0; k < order.length; k++) order[k] = id(now.get(k));
+            broadcast(out -> {
+                out.writeByte(REORDER); writeVarInt(out, from); writeVarInt(out, order.length);
+                for (int id : order) writeVarInt(out, id); // in list order, so not delta-coded like writeIds
+            });
+        }
+
+        @Override
+        public void transformed(Collection<? extends Source.GraphObject> objs, AffineTransform at) {
+            if (idle() || objs.isEmpty()) return;
+            int[] mapped = new int[objs.size()];
+            int n = 0;
+            for (Source.GraphObject o : objs) mapped[n++] = id(o);
+            Arrays.sort(mapped);
+            double[] m = new double[6];
+            at.getMatrix(m);
+            broadcast(out -> { out.writeByte(TRANSFORM); writeIds(out, mapped); for (double v : m) out.writeDouble(v); });
+        }
+
+        /**
+         * One object on its own. Points it is attached to are sent as references to their ids
+         * rather than as copies, so the viewer links it to the points it already has.
+         */
+        private void writeObjectBlob(DataOutputStream out, Source.GraphObject o) throws IOException {
+            ByteArrayOutputStream bo = new ByteArrayOutputStream();
+            try (ObjectOutputStream oo = new ObjectOutputStream(bo) {
+                { enableReplaceObject(true); }
+                @Override protected Object replaceObject(Object obj) {
+                    Integer id = obj != o ? ids.get(obj) : null; // only top-level points have ids
+                    return id != null && obj instanceof Source.GPoint ? new PointRef(id) : obj;
+                }
+            }) { oo.writeObject(o); }
+            writeVarInt(out, bo.size());
+            bo.writeTo(out);
+        }
+
+        @Override
+        public void reset(List<Source.GraphObject> all) {
+            if (idle()) return;
+            ids.clear();
+            lastMove = null;
+            byte[] snapshot = encodeReset(all);
+            for (Client c : clients) c.send(snapshot);
+        }
+
+        /** One connected viewer: ops queue up here and a writer thread drains them to the socket. */
+        private final class Client {
+            final Socket socket;
+            final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(MAX_BACKLOG);
+            volatile boolean closed;
+
+            Client(Socket socket) throws IOException {
+                this.socket = socket;
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+                out.writeInt(MAGIC);
+                Thread writer = new Thread(() -> writeLoop(out), "mirror-writer-" + socket.getPort());
+                writer.setDaemon(true);
+                writer.start();
+            }
+
+            void send(byte[] op) {
+                if (!closed && !queue.offer(op)) close();
+            }
+
+            private void writeLoop(DataOutputStream out) {
+                try {
+                    while (!closed) {
+                        byte[] op = queue.take();
+                        out.write(op);
+                        if (queue.isEmpty()) out.flush();
+                    }
+                } catch (IOException | InterruptedException ex) {
+                    close();
+                }
+            }
+
+            void close() {
+                closed = true;
+                try { socket.close(); } catch (IOException ignored) {}
+                queue.clear();
+            }
+        }
+    }
+
+    /**
+     * Where to listen, from "PORT" or "ADDRESS:PORT". A bare port binds the loopback interface, so a
+     * drawing is only visible beyond this machine when an address such as 0.0.0.0 is given.
+     */
+    static InetSocketAddress bindAddress(String spec) throws IOException {
+        int colon = spec.lastIndexOf(':');
+        int port = Integer.parseInt(spec.substring(colon + 1).trim());
+        InetAddress host = colon < 0 ? InetAddress.getLoopbackAddress() : InetAddress.getByName(spec.substring(0, colon).trim());
+        return new InetSocketAddress(host, port);
+    }
+
+    /** What a subscriber edits; all calls arrive on the EDT. */
+    interface View {
+        ArrayList<Source.GraphObject> objects();
+        void setObjects(ArrayList<Source.GraphObject> objects);
+        /** Called once per applied batch; structural is true when objects were added, removed or reordered. */
+        void refresh(boolean structural);
+        void disconnected(String reason);
+    }
+
+    /** Viewing side: reads and decodes on its own thread, applies batches of ops on the EDT. */
+    static final class Subscriber {
+        private final Socket socket;
+        private final View view;
+        private final ConcurrentLinkedQueue<Object[]> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean drainScheduled = new AtomicBoolean();
+        private final HashMap<Integer, Source.GraphObject> byId = new HashMap<>();
+        private List<Source.GraphObject> lastMove = Collections.emptyList();
+
+        Subscriber(String host, int port, View view) throws IOException {
+            this.socket = new Socket(host, port);
+            this.view = view;
+            Thread reader = new Thread(this::readLoop, "mirror-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void close() {
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+
+        private void readLoop() {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16))) {
+                if (in.readInt() != MAGIC) throw new IOException("Not a Vector-Graph mirror");
+                while (true) {
+                    byte op = in.readByte();
+                    switch (op) {
+                        case RESET: {
+                            int[] ids = new int[readVarInt(in)];
+                            for (int i = 0; i < ids.length; i++) ids[i] = readVarInt(in);
+                            queue(op, ids, readBlob(in));
+                            break;
+                        }
+                        case ADD: queue(op, readVarInt(in), readVarInt(in), readBlob(in)); break;
+                        case REMOVE: queue(op, readIds(in)); break;
+                        case MOVE: queue(op, readIds(in), in.readDouble(), in.readDouble()); break;
+                        case MOVE_SAME: queue(op, in.readDouble(), in.readDouble()); break;
+                        case RESTYLE: queue(op, readVarInt(in), in.readInt(), in.readFloat(), in.readUTF()); break;
+                        case CHANGE: queue(op, readVarInt(in), readBlob(in)); break;
+                        case REORDER: {
+                            int from = readVarInt(in);
+                            int[] order = new int[readVarInt(in)];
+                            for (int k = 0; k < order.length; k++) order[k] = readVarInt(in);
+                            queue(op, from, order);
+                            break;
+                        }
+                        case TRANSFORM: {
+                            int[] ids = readIds(in);
+                            double[] m = new double[6];
+                            for (int i = 0; i < 6; i++) m[i] = in.readDouble();
+                            queue(op, ids, new AffineTransform(m));
+                            break;
+                        }
+                        default: throw new IOException("Unknown mirror operation " + op);
+                    }
+                }
+            } catch (IOException | ClassNotFoundException ex) {
+                String reason = ex instanceof EOFException ? "Publisher closed the mirror" : ex.getMessage();
+                SwingUtilities.invokeLater(() -> view.disconnected(reason));
+            }
+        }
+
+        private void queue(Object... op) {
+            pending.add(op);
+            if (drainScheduled.compareAndSet(false, true)) SwingUtilities.invokeLater(this::drain);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void drain() {
+            drainScheduled.set(false);
+            boolean structural = false, any = false;
+            ArrayList<Source.GraphObject> list = view.objects();
+            Object[] op;
+            while ((op = pending.poll()) != null) {
+                any = true;
+                switch ((Byte) op[0]) {
+                    case RESET: {
+                        int[] ids = (int[]) op[1];
+                        ArrayList<Source.GraphObject> all = (ArrayList<Source.GraphObject>) op[2];
+                        byId.clear();
+                        for (int i = 0; i < ids.length; i++) byId.put(ids[i], prepare(all.get(i)));
+                        Links.relink(all);
+                        view.setObjects(all);
+                        list = all;
+                        lastMove = Collections.emptyList();
+                        structural = true;
+                        break;
+                    }
+                    case ADD: {
+                        Source.GraphObject o = link(prepare((Source.GraphObject) op[3]));
+                        byId.put((Integer) op[1], o);
+                        list.add(Math.min((Integer) op[2], list.size()), o);
+                        structural = true;
+                        break;
+                    }
+                    case REMOVE: {
+                        Set<Source.GraphObject> gone = Collections.newSetFromMap(new IdentityHashMap<>());
+                        for (int id : (int[]) op[1]) { Source.GraphObject o = byId.remove(id); if (o != null) gone.add(o); }
+                        Links.removed(gone);
+                        list.removeIf(gone::contains);
+                        structural = true;
+                        break;
+                    }
+                    case MOVE: {
+                        lastMove = new ArrayList<>();
+                        for (int id : (int[]) op[1]) { Source.GraphObject o = byId.get(id); if (o != null) lastMove.add(o); }
+                        for (Source.GraphObject o : lastMove) o.move((Double) op[2], (Double) op[3]);
+                        Links.settle(lastMove);
+                        break;
+                    }
+                    case MOVE_SAME:
+                        for (Source.GraphObject o : lastMove) o.move((Double) op[1], (Double) op[2]);
+                        Links.settle(lastMove);
+                        break;
+                    case RESTYLE: {
+                        Source.GraphObject o = byId.get((Integer) op[1]);
+                        if (o == null) break;
+                        o.restyle(new Color((Integer) op[2], true), (Float) op[3]);
+                        o.name = (String) op[4];
+                        structural = true; // the layer list shows names and colours
+                        break;
+                    }
+                    case CHANGE: {
+                        Source.GraphObject fresh = link(prepare((Source.GraphObject) op[2]));
+                        Source.GraphObject old = byId.put((Integer) op[1], fresh);
+                        if (old != null) Links.removed(Collections.singletonList(old));
+                        int at = old == null ? -1 : indexOf(list, old);
+                        if (at >= 0) list.set(at, fresh);
+                        structural = true;
+                        break;
+                    }
+                    case TRANSFORM: {
+                        AffineTransform at = (AffineTransform) op[2];
+                        ArrayList<Source.GraphObject> mapped = new ArrayList<>();
+                        for (int id : (int[]) op[1]) { Source.GraphObject o = byId.get(id); if (o != null) { o.transformed(at); mapped.add(o); } }
+                        Links.settle(mapped);
+                        break;
+                    }
+                    case REORDER: {
+                        int from = (Integer) op[1];
+                        int[] order = (int[]) op[2];
+                        if (from + order.length > list.size()) break;
+                        Source.GraphObject[] now = new Source.GraphObject[order.length];
+                        boolean known = true;
+                        for (int k = 0; k < order.length && known; k++) known = (now[k] = byId.get(order[k])) != null;
+                        if (!known) break;
+                        for (int k = 0; k < now.length; k++) list.set(from + k, now[k]);
+                        structural = true;
+                        break;
+                    }
+                }
+            }
+            if (any) view.refresh(structural);
+        }
+
+        private static Source.GraphObject prepare(Source.GraphObject o) {
+            o.rebuildShape();
+            o.isSelected = false;
+            return o;
+        }
+
+        /** Swaps the id references an object arrived with for this viewer's points and attaches it to them. */
+        private Source.GraphObject link(Source.GraphObject o) {
+            Links.remap(o, p -> {
+                if (!(p instanceof PointRef)) return p;
+                Source.GraphObject target = byId.get(((PointRef) p).id);
+                return target instanceof Source.GPoint ? (Source.GPoint) target : null;
+            });
+            Links.link(o);
+            return o;
+        }
+
+        private static int indexOf(List<Source.GraphObject> list, Source.GraphObject o) {
+            for (int i = 0; i < list.size(); i++) if (list.get(i) == o) return i;
+            return -1;
+        }
+    }
+
+    // --- Wire encoding ---
+
+    /** Stands in for an attached point inside a single-object blob; see Publisher.writeObjectBlob. */
+    private static final class PointRef extends Source.GPoint {
+        private static final long serialVersionUID = 1L;
+        final int id;
+
+        PointRef(int id) {
+            super(0, 0, "");
+            this.id = id;
+        }
+    }
+
+    private static void writeVarInt(DataOutputStream out, int v) throws IOException {
+        while ((v & ~0x7f) != 0) { out.writeByte((v & 0x7f) | 0x80); v >>>= 7; }
+        out.writeByte(v);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int v = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+    }
+
+    /** Sorted ids as a count followed by gaps, so a contiguous selection costs about a byte per object. */
+    private static void writeIds(DataOutputStream out, int[] sortedIds) throws IOException {
+        writeVarInt(out, sortedIds.length);
+        int prev = 0;
+        for (int id : sortedIds) { writeVarInt(out, id - prev); prev = id; }
+    }
+
+    private static int[] readIds(DataInputStream in) throws IOException {
+        int[] ids = new int[readVarInt(in)];
+        int prev = 0;
+        for (int i = 0; i < ids.length; i++) { prev += readVarInt(in); ids[i] = prev; }
+        return ids;
+    }
+
+    private static void writeBlob(DataOutputStream out, Object o) throws IOException {
+        ByteArrayOutputStream bo = new ByteArrayOutputStream();
+        try (ObjectOutputStream oo = new ObjectOutputStream(bo)) { oo.writeObject(o); }
+        writeVarInt(out, bo.size());
+        bo.writeTo(out);
+    }
+
+    /** Largest blob a viewer accepts, and the deepest nesting and longest array inside one. */
+    private static final int MAX_BLOB = 1 << 30, MAX_DEPTH = 256, MAX_ARRAY = 1 << 24;
+
+    /**
+     * What a viewer deserializes from the wire: the drawing's own classes and the few JDK types they
+     * hold, and nothing else, so a hostile publisher can't instantiate arbitrary classes.
+     */
+    private static final ObjectInputFilter FILTER = info -> {
+        if (info.depth() > MAX_DEPTH || info.arrayLength() > MAX_ARRAY) return ObjectInputFilter.Status.REJECTED;
+        Class<?> c = info.serialClass();
+        if (c == null) return ObjectInputFilter.Status.UNDECIDED;
+        while (c.isArray()) c = c.getComponentType();
+        boolean allowed = c.isPrimitive() || c.isEnum() || c == Enum.class
+                || Source.GraphObject.class.isAssignableFrom(c) || c == SymbolDef.class
+                || c == Color.class || c == AffineTransform.class
+                || Rectangle2D.class.isAssignableFrom(c) || Point2D.class.isAssignableFrom(c) || Path2D.class.isAssignableFrom(c)
+                || c == ArrayList.class || c == Object.class /* its element array */ || c.getName().startsWith("java.util.Collections$Unmodifiable") // SymbolDef.geometry
+                || c == String.class || Number.class.isAssignableFrom(c) && c.getName().startsWith("java.lang.");
+        return allowed ? ObjectInputFilter.Status.ALLOWED : ObjectInputFilter.Status.REJECTED;
+    };
+
+    private static Object readBlob(DataInputStream in) throws IOException, ClassNotFoundException {
+        int size = readVarInt(in);
+        if (size < 0 || size > MAX_BLOB) throw new IOException("Mirror object too large: " + size + " bytes");
+        byte[] bytes = new byte[size];
+        in.readFully(bytes);
+        try (ObjectInputStream oi = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            oi.setObjectInputFilter(FILTER);
+            return oi.readObject();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Immutable point-in-time copies of the scene for background jobs (save, minimap, analysis).
+ * Every live object has a frozen copy that all snapshots share until a scene event marks the
+ * object dirty. While objects are only edited, appended or reordered, the next snapshot starts
+ * from a copy of the previous one's reference array and rewrites just the affected slots; adding
+ * elsewhere or removing costs one pass over the scene. A snapshot is reused as is while nothing
+ * has changed.
+ * <p>
+ * Snapshot objects must never be modified. Links between them point at each other, not at live
+ * objects. Selection changes are not scene events, so a snapshot's isSelected flags are whatever
+ * they were when each object was frozen. Taking a snapshot and the listener calls happen on the
+ * EDT; the snapshot itself may be read from any thread.
+ */
+class SceneModel implements Source.SceneListener {
+    static final class Snapshot {
+        /** Changes whenever the scene does; equal versions mean equal contents. */
+        final long version;
+        final List<Source.GraphObject> objects;
+        private final Source.GraphObject[] items;
+
+        private Snapshot(long version, Source.GraphObject[] items) {
+            this.version = version;
+            this.items = items;
+            this.objects = Collections.unmodifiableList(Arrays.asList(items));
+        }
+    }
+
+    private final Supplier<List<Source.GraphObject>> scene;
+    // live -> frozen and back, so results computed on a snapshot can be mapped to what is on screen
+    private final IdentityHashMap<Source.GraphObject, Source.GraphObject> frozen = new IdentityHashMap<>();
+    private final IdentityHashMap<Source.GraphObject, Source.GraphObject> live = new IdentityHashMap<>();
+    // Objects dirtied since the last snapshot, and where each live object sat in it
+    private final Set<Source.GraphObject> pending = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final IdentityHashMap<Source.GraphObject, Integer> position = new IdentityHashMap<>();
+    private boolean structural = true;
+    private long version;
+    private Snapshot last;
+    private List<Source.GraphObject> lastList;
+
+    SceneModel(Supplier<List<Source.GraphObject>> scene) {
+        this.scene = scene;
+    }
+
+    Snapshot snapshot() {
+        List<Source.GraphObject> list = scene.get();
+        // The list is compared too: a viewer or undo can swap it without a reset
+        if (last != null && last.version == version && lastList == list && last.objects.size() == list.size()) return last;
+        ArrayList<Source.GraphObject> fresh = new ArrayList<>();
+        Source.GraphObject[] out;
+        if (!structural && last != null && lastList == list && list.size() >= last.items.length) {
+            int kept = last.items.length;
+            out = Arrays.copyOf(last.items, list.size());
+            if (position.isEmpty()) for (int i = 0; i < kept; i++) position.put(list.get(i), i);
+            for (Source.GraphObject o : pending) {
+                Integer i = position.get(o);
+                if (i != null) out[i] = freeze(o, fresh);
+            }
+            for (int i = kept; i < out.length; i++) { out[i] = freeze(list.get(i), fresh); position.put(list.get(i), i); }
+        } else {
+            out = new Source.GraphObject[list.size()];
+            for (int i = 0; i < out.length; i++) out[i] = freeze(list.get(i), fresh);
+            position.clear();
+        }
+        // A new copy of an attached line still references the live points
+        for (Source.GraphObject f : fresh) Links.remap(f, p -> (Source.GPoint) frozen.get(p));
+        pending.clear();
+        structural = false;
+        last = new Snapshot(version, out);
+        lastList = list;
+        return last;
+    }
+
+    private Source.GraphObject freeze(Source.GraphObject o, List<Source.GraphObject> fresh) {
+        Source.GraphObject f = frozen.get(o);
+        if (f == null) {
+            f = o.copy();
+            frozen.put(o, f);
+            live.put(f, o);
+            fresh.add(f);
+        }
+        return f;
+    }
+
+    /** The live object a snapshot object was copied from, or null if it has changed or gone since. */
+    Source.GraphObject liveFor(Source.GraphObject snapshotObject) {
+        return live.get(snapshotObject);
+    }
+
+    /** Drops every frozen copy, for a scene swapped in without events (a mirror viewer's updates). */
+    void invalidate() {
+        frozen.clear();
+        live.clear();
+        structural = true;
+        version++;
+    }
+
+    private void dirty(Source.GraphObject o) {
+        Source.GraphObject f = frozen.remove(o);
+        if (f == null) return;
+        live.remove(f);
+        pending.add(o);
+        // Frozen copies of attached lines reference this point's frozen copy, so they go too
+        if (o instanceof Source.GPoint && ((Source.GPoint) o).dependents != null) {
+            for (Source.GraphObject d : ((Source.GPoint) o).dependents) dirty(d);
+        }
+    }
+
+    private void dirty(Collection<? extends Source.GraphObject> objs) {
+        for (Source.GraphObject o : objs) dirty(o);
+        version++;
+    }
+
+    @Override public void added(int index, Source.GraphObject o) { if (index != scene.get().size() - 1) structural = true; version++; }
+    @Override public void removed(Collection<? extends Source.GraphObject> objs) { structural = true; dirty(objs); }
+    @Override public void moved(Collection<? extends Source.GraphObject> objs, double dx, double dy) { dirty(objs); }
+    @Override public void restyled(Source.GraphObject o) { dirty(Collections.singletonList(o)); }
+    @Override public void changed(Source.GraphObject o) { dirty(Collections.singletonList(o)); }
+    // Frozen copies stay valid; only the slots of the rearranged objects change
+    @Override public void reordered(int from, List<Source.GraphObject> now) {
+        if (!position.isEmpty()) for (int k = 0; k < now.size(); k++) position.put(now.get(k), from + k);
+        pending.addAll(now);
+        version++;
+    }
+    @Override public void transformed(Collection<? extends Source.GraphObject> objs, java.awt.geom.AffineTransform at) { dirty(objs); }
+    @Override public void reshaped(Collection<? extends Source.GraphObject> objs) { dirty(objs); }
+    @Override public void reset(List<Source.GraphObject> all) { invalidate(); }
+}
@@ -0,0 +1,140 @@
+import java.awt.*;
+import java.awt.event.AWTEventListener;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Records canvas mouse input and named actions (see Source.runAction) to a text session file for
+ * SessionReplay. The document as it was when recording started is saved next to the session, so
+ * a session replays against exactly the scene it was recorded on.
+ * <p>
+ * Format: a header, then one event per line, e.g. {@code 1532 drag 410 220 1 1024 0} (milliseconds,
+ * kind, x, y, button, extended modifiers, click count) or {@code 2210 action undo}. Wheel events
+ * add the wheel rotation. Presses in polygon mode are not recorded because that tool asks for
+ * its size in a dialog.
+ * <p>
+ * Input outside the canvas is recorded too, so later presses land on the same objects: layer-list
+ * selection ({@code select} with index paths, "4/1" being child 1 of group 4), the colour and
+ * stroke pickers ({@code color ARGB}, {@code stroke W}), and, written just before the next event
+ * whenever they differ from what was last written, the view ({@code view TX TY SCALE}, however it
+ * changed: slider, zoom buttons, minimap, wheel) and grid snapping ({@code snap true}).
+ */
+class SessionRecorder implements AWTEventListener, Closeable {
+    static final String HEADER = "# vector-graph session 1";
+    static final String EXTENSION = ".session";
+
+    private final PrintWriter out;
+    private final Source source;
+    private final long start = System.nanoTime();
+    private boolean skipping;
+    // The view and snapping as last written, so changes made outside the canvas are caught
+    private double tx, ty, scale;
+    private boolean snap;
+
+    SessionRecorder(File session, Source source) throws IOException {
+        this.source = source;
+        File graph = graphFor(session);
+        Source.writeGraph(graph, source.canvas.objects);
+        out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(session), StandardCharsets.UTF_8)));
+        out.println(HEADER);
+        out.println("graph " + graph.getName());
+        out.println("canvas " + source.canvas.getWidth() + " " + source.canvas.getHeight());
+        tx = source.canvas.translateX; ty = source.canvas.translateY; scale = source.canvas.scale; snap = source.snapToGrid;
+        out.println("view " + tx + " " + ty + " " + scale);
+        out.println("mode " + source.currentMode);
+        out.println("snap " + snap);
+        out.println("color " + source.currentColor.getRGB());
+        out.println("stroke " + source.currentStroke);
+        Toolkit.getDefaultToolkit().addAWTEventListener(this,
+                AWTEvent.MOUSE_EVENT_MASK | AWTEvent.MOUSE_MOTION_EVENT_MASK | AWTEvent.MOUSE_WHEEL_EVENT_MASK);
+    }
+
+    /** The scene snapshot that belongs to a session file. */
+    static File graphFor(File session) {
+        String name = session.getName();
+        if (name.endsWith(EXTENSION)) name = name.substring(0, name.length() - EXTENSION.length());
+        return new File(session.getAbsoluteFile().getParentFile(), name + ".graph");
+    }
+
+    private long millis() {
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    /** Starts an event line, first writing any view or snapping change since the last one. */
+    private StringBuilder event(String kind) {
+        long ms = millis();
+        Source.GraphCanvas c = source.canvas;
+        if (c.translateX != tx || c.translateY != ty || c.scale != scale) {
+            tx = c.translateX; ty = c.translateY; scale = c.scale;
+            out.println(ms + " view " + tx + " " + ty + " " + scale);
+        }
+        if (source.snapToGrid != snap) {
+            snap = source.snapToGrid;
+            out.println(ms + " snap " + snap);
+        }
+        return new StringBuilder(48).append(ms).append(' ').append(kind);
+    }
+
+    void action(String name) {
+        out.println(event("action").append(' ').append(name));
+    }
+
+    void color(Color c) {
+        out.println(event("color").append(' ').append(c.getRGB()));
+    }
+
+    void stroke(float w) {
+        out.println(event("stroke").append(' ').append(w));
+    }
+
+    /** A selection made in the layer list, which may include children of expanded groups. */
+    void select(List<Source.GraphObject> selected) {
+        Set<Source.GraphObject> wanted = Collections.newSetFromMap(new IdentityHashMap<>());
+        wanted.addAll(selected);
+        StringBuilder line = event("select");
+        paths(source.canvas.objects, "", wanted, line);
+        out.println(line);
+    }
+
+    private static void paths(List<Source.GraphObject> objects, String prefix, Set<Source.GraphObject> wanted, StringBuilder line) {
+        for (int i = 0; i < objects.size(); i++) {
+            Source.GraphObject o = objects.get(i);
+            if (wanted.contains(o)) line.append(' ').append(prefix).append(i);
+            if (o instanceof Source.GGroup) paths(((Source.GGroup) o).children, prefix + i + "/", wanted, line);
+        }
+    }
+
+    @Override
+    public void eventDispatched(AWTEvent event) {
+        if (event.getSource() != source.canvas || !(event instanceof MouseEvent)) return;
+        MouseEvent e = (MouseEvent) event;
+        String kind;
+        switch (e.getID()) {
+            case MouseEvent.MOUSE_PRESSED: kind = "press"; break;
+            case MouseEvent.MOUSE_DRAGGED: kind = "drag"; break;
+            case MouseEvent.MOUSE_RELEASED: kind = "release"; break;
+            case MouseEvent.MOUSE_WHEEL: kind = "wheel"; break;
+            default: return;
+        }
+        // A skipped press takes its drags and release with it
+        if (e.getID() == MouseEvent.MOUSE_PRESSED) skipping = source.currentMode == Source.Mode.POLYGON;
+        if (skipping) { if (e.getID() == MouseEvent.MOUSE_RELEASED) skipping = false; return; }
+        StringBuilder line = event(kind).append(' ')
+                .append(e.getX()).append(' ').append(e.getY()).append(' ').append(e.getButton()).append(' ')
+                .append(e.getModifiersEx()).append(' ').append(e.getClickCount());
+        if (e instanceof MouseWheelEvent) line.append(' ').append(((MouseWheelEvent) e).getWheelRotation());
+        out.println(line);
+    }
+
+    @Override
+    public void close() {
+        Toolkit.getDefaultToolkit().removeAWTEventListener(this);
+        out.close();
+    }
+}
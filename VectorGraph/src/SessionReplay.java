@@ -0,0 +1,268 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.List;
+
+/**
+ * Replays a recorded session (see SessionRecorder) against its scene and reports latency per
+ * event kind and per paint. The window is built but never shown; events are dispatched straight
+ * to the canvas and each one is followed by a paint into an off-screen image, so every run does
+ * the same work.
+ * <p>
+ * {@code java SessionReplay drag.session [--runs N] [--save results.txt] [--baseline results.txt] [--tolerance 1.25]}
+ * <p>
+ * The first of several runs is a warm-up and is not counted. With --baseline, the exit status is
+ * 1 if any kind's p90 grew by more than the tolerance factor (and by at least MIN_REGRESSION_US),
+ * so a build can fail on it. Status 2 means bad arguments or no display (use xvfb-run on servers).
+ */
+public class SessionReplay {
+    /** Regressions smaller than this are treated as timer noise whatever the ratio. */
+    static final long MIN_REGRESSION_US = 200;
+
+    public static void main(String[] args) throws Exception {
+        File session = null, baseline = null, save = null;
+        double tolerance = 1.25;
+        int runs = 3;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--runs": runs = Integer.parseInt(args[++i]); break;
+                case "--save": save = new File(args[++i]); break;
+                case "--baseline": baseline = new File(args[++i]); break;
+                case "--tolerance": tolerance = Double.parseDouble(args[++i]); break;
+                default: session = new File(args[i]);
+            }
+        }
+        if (session == null || runs < 1) {
+            System.err.println("usage: SessionReplay <file" + SessionRecorder.EXTENSION + "> [--runs N] [--save F] [--baseline F] [--tolerance X]");
+            System.exit(2);
+        }
+        if (GraphicsEnvironment.isHeadless()) {
+            System.err.println("SessionReplay needs a display to build the window (it is never shown); on a server run it under xvfb-run.");
+            System.exit(2);
+        }
+
+        Session s = Session.read(session);
+        Source[] holder = new Source[1];
+        SwingUtilities.invokeAndWait(() -> {
+            holder[0] = new Source();
+            holder[0].pack(); // displayable, so the canvas gets real volatile images, but not visible
+            holder[0].dragPacer.immediate = true;
+        });
+
+        Stats stats = new Stats();
+        for (int run = 0; run < runs; run++) {
+            boolean counted = run > 0 || runs == 1;
+            replay(holder[0], s, counted ? stats : new Stats());
+        }
+        stats.print(System.out);
+        if (save != null) stats.save(save);
+
+        int status = 0;
+        if (baseline != null) {
+            List<String> regressions = stats.compare(Stats.load(baseline), tolerance);
+            for (String r : regressions) System.out.println("REGRESSION " + r);
+            if (!regressions.isEmpty()) status = 1;
+        }
+        System.exit(status);
+    }
+
+    private static void replay(Source source, Session s, Stats stats) throws Exception {
+        ArrayList<Source.GraphObject> scene = Source.readGraph(s.graph);
+        Source.GraphCanvas canvas = source.canvas;
+        SwingUtilities.invokeAndWait(() -> {
+            source.installGraph(scene);
+            canvas.setSize(s.width, s.height);
+            canvas.translateX = s.translateX; canvas.translateY = s.translateY; canvas.scale = s.scale;
+            source.currentMode = s.mode;
+            source.snapToGrid = s.snap;
+            source.currentColor = s.color;
+            source.currentStroke = s.stroke;
+        });
+        BufferedImage frame = new BufferedImage(Math.max(1, s.width), Math.max(1, s.height), BufferedImage.TYPE_INT_RGB);
+        for (String[] e : s.events) {
+            SwingUtilities.invokeAndWait(() -> {
+                if (canvas.getWidth() != s.width || canvas.getHeight() != s.height) canvas.setSize(s.width, s.height);
+                // State the recording caught changing between events; restored, not timed
+                switch (e[1]) {
+                    case "view": canvas.translateX = Double.parseDouble(e[2]); canvas.translateY = Double.parseDouble(e[3]); canvas.scale = Double.parseDouble(e[4]); return;
+                    case "snap": source.snapToGrid = Boolean.parseBoolean(e[2]); return;
+                }
+                String kind = e[1].equals("action") ? "action " + e[2] : e[1];
+                long t0 = System.nanoTime();
+                switch (e[1]) {
+                    case "action": source.runAction(e[2]); break;
+                    case "color": source.applyColor(new Color(Integer.parseInt(e[2]), true)); break;
+                    case "stroke": source.applyStroke(Float.parseFloat(e[2])); break;
+                    case "select": source.selectOnly(resolve(canvas.objects, e)); break;
+                    default: canvas.dispatchEvent(toEvent(canvas, e));
+                }
+                long t1 = System.nanoTime();
+                Graphics2D g = frame.createGraphics();
+                canvas.paint(g);
+                g.dispose();
+                long t2 = System.nanoTime();
+                stats.add(kind, t1 - t0);
+                stats.add("paint", t2 - t1);
+            });
+        }
+    }
+
+    /** The objects a select event names by index path; paths that no longer resolve are skipped. */
+    private static List<Source.GraphObject> resolve(List<Source.GraphObject> objects, String[] e) {
+        List<Source.GraphObject> out = new ArrayList<>(e.length - 2);
+        for (int k = 2; k < e.length; k++) {
+            List<Source.GraphObject> level = objects;
+            Source.GraphObject o = null;
+            for (String step : e[k].split("/")) {
+                int i = Integer.parseInt(step);
+                if (level == null || i >= level.size()) { o = null; break; }
+                o = level.get(i);
+                level = o instanceof Source.GGroup ? ((Source.GGroup) o).children : null;
+            }
+            if (o != null) out.add(o);
+        }
+        return out;
+    }
+
+    private static MouseEvent toEvent(Component c, String[] e) {
+        int x = Integer.parseInt(e[2]), y = Integer.parseInt(e[3]), button = Integer.parseInt(e[4]);
+        int mods = Integer.parseInt(e[5]), clicks = Integer.parseInt(e[6]);
+        long when = System.currentTimeMillis();
+        switch (e[1]) {
+            case "press": return new MouseEvent(c, MouseEvent.MOUSE_PRESSED, when, mods, x, y, clicks, false, button);
+            case "drag": return new MouseEvent(c, MouseEvent.MOUSE_DRAGGED, when, mods, x, y, clicks, false, button);
+            case "release": return new MouseEvent(c, MouseEvent.MOUSE_RELEASED, when, mods, x, y, clicks, false, button);
+            case "wheel": return new MouseWheelEvent(c, MouseEvent.MOUSE_WHEEL, when, mods, x, y, clicks, false,
+                    MouseWheelEvent.WHEEL_UNIT_SCROLL, 1, Integer.parseInt(e[7]));
+            default: throw new IllegalArgumentException("Unknown event kind: " + e[1]);
+        }
+    }
+
+    /** A parsed session file. */
+    static final class Session {
+        File graph;
+        int width, height;
+        double translateX, translateY, scale = 1;
+        Source.Mode mode = Source.Mode.PAN;
+        boolean snap;
+        Color color = Color.BLACK;
+        float stroke = 2;
+        final List<String[]> events = new ArrayList<>();
+
+        static Session read(File f) throws IOException {
+            List<String> lines = Files.readAllLines(f.toPath(), StandardCharsets.UTF_8);
+            if (lines.isEmpty() || !lines.get(0).equals(SessionRecorder.HEADER)) throw new IOException(f + " is not a recorded session");
+            Session s = new Session();
+            s.graph = SessionRecorder.graphFor(f);
+            for (String line : lines.subList(1, lines.size())) {
+                if (line.isBlank()) continue;
+                String[] t = line.trim().split(" ");
+                switch (t[0]) {
+                    case "graph": s.graph = new File(f.getAbsoluteFile().getParentFile(), line.substring(6)); break;
+                    case "canvas": s.width = Integer.parseInt(t[1]); s.height = Integer.parseInt(t[2]); break;
+                    case "view": s.translateX = Double.parseDouble(t[1]); s.translateY = Double.parseDouble(t[2]); s.scale = Double.parseDouble(t[3]); break;
+                    case "mode": s.mode = Source.Mode.valueOf(t[1]); break;
+                    case "snap": s.snap = Boolean.parseBoolean(t[1]); break;
+                    case "color": s.color = new Color(Integer.parseInt(t[1]), true); break;
+                    case "stroke": s.stroke = Float.parseFloat(t[1]); break;
+                    default: s.events.add(t);
+                }
+            }
+            return s;
+        }
+    }
+
+    /** Latency samples per kind, in nanoseconds, summarised in microseconds. */
+    static final class Stats {
+        private final Map<String, long[]> samples = new TreeMap<>();
+        private final Map<String, Integer> counts = new HashMap<>();
+        /** Loaded baselines only carry summaries: kind to {count, p50, p90, p99, max}. */
+        private final Map<String, long[]> summaries = new TreeMap<>();
+
+        void add(String kind, long nanos) {
+            long[] a = samples.computeIfAbsent(kind, k -> new long[64]);
+            int n = counts.getOrDefault(kind, 0);
+            if (n == a.length) samples.put(kind, a = Arrays.copyOf(a, n * 2));
+            a[n] = nanos;
+            counts.put(kind, n + 1);
+        }
+
+        /** {count, p50, p90, p99, max} in microseconds. */
+        long[] summary(String kind) {
+            if (summaries.containsKey(kind)) return summaries.get(kind);
+            int n = counts.get(kind);
+            long[] a = Arrays.copyOf(samples.get(kind), n);
+            Arrays.sort(a);
+            return new long[] { n, a[(n - 1) / 2] / 1000, a[(int) ((n - 1) * 0.9)] / 1000, a[(int) ((n - 1) * 0.99)] / 1000, a[n - 1] / 1000 };
+        }
+
+        Set<String> kinds() {
+            Set<String> k = new TreeSet<>(samples.keySet());
+            k.addAll(summaries.keySet());
+            return k;
+        }
+
+        void print(PrintStream out) {
+            out.printf("%-24s %7s %9s %9s %9s %9s%n", "event", "count", "p50 us", "p90 us", "p99 us", "max us");
+            for (String k : kinds()) {
+                long[] s = summary(k);
+                out.printf("%-24s %7d %9d %9d %9d %9d%n", k, s[0], s[1], s[2], s[3], s[4]);
+            }
+            out.println();
+            out.println("histograms (upper bound in us: count)");
+            for (String k : kinds()) {
+                if (!samples.containsKey(k)) continue;
+                // Power-of-two buckets from 16 us up
+                TreeMap<Long, Integer> buckets = new TreeMap<>();
+                long[] a = samples.get(k);
+                for (int i = 0, n = counts.get(k); i < n; i++) {
+                    long us = a[i] / 1000, bound = 16;
+                    while (bound < us) bound <<= 1;
+                    buckets.merge(bound, 1, Integer::sum);
+                }
+                StringBuilder line = new StringBuilder(String.format("%-24s", k));
+                buckets.forEach((b, c) -> line.append(' ').append(b).append(':').append(c));
+                out.println(line);
+            }
+        }
+
+        void save(File f) throws IOException {
+            try (PrintWriter w = new PrintWriter(f, StandardCharsets.UTF_8)) {
+                w.println("# kind count p50 p90 p99 max (microseconds)");
+                for (String k : kinds()) {
+                    long[] s = summary(k);
+                    w.println(k.replace(' ', '+') + " " + s[0] + " " + s[1] + " " + s[2] + " " + s[3] + " " + s[4]);
+                }
+            }
+        }
+
+        static Stats load(File f) throws IOException {
+            Stats st = new Stats();
+            for (String line : Files.readAllLines(f.toPath(), StandardCharsets.UTF_8)) {
+                if (line.startsWith("#") || line.isBlank()) continue;
+                String[] t = line.trim().split(" ");
+                long[] s = new long[5];
+                for (int i = 0; i < 5; i++) s[i] = Long.parseLong(t[i + 1]);
+                st.summaries.put(t[0].replace('+', ' '), s);
+            }
+            return st;
+        }
+
+        /** Kinds whose p90 is worse than the baseline's by more than the tolerance. */
+        List<String> compare(Stats base, double tolerance) {
+            List<String> out = new ArrayList<>();
+            for (String k : kinds()) {
+                if (!base.kinds().contains(k)) continue;
+                long now = summary(k)[2], was = base.summary(k)[2];
+                if (now > was * tolerance && now - was >= MIN_REGRESSION_US) out.add(k + ": p90 " + was + " us -> " + now + " us");
+            }
+            return out;
+        }
+    }
+}
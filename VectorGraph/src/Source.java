@@ -5,9 +5,11 @@ import java.awt.*;
 import java.awt.event.*;
 import java.awt.geom.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
 import java.io.File;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Stack;
 
@@ -21,12 +23,33 @@ public class Source extends JFrame {
     final int GRID_SIZE = 50;
 
     GraphCanvas canvas;
+    SceneModel sceneModel;
+    Minimap minimap;
     UndoManager undoManager = new UndoManager();
 
     DefaultListModel<GraphObject> layerModel;
     JList<GraphObject> layerList;
     boolean ignoreLayerEvents = false;
+    java.util.IdentityHashMap<GraphObject, Integer> layerDepth = new java.util.IdentityHashMap<>();
     JPopupMenu contextMenu;
+    JMenu toolsMenu;
+
+    final ArrayList<SceneListener> sceneListeners = new ArrayList<>();
+    SceneMirror.Publisher mirrorPublisher;
+    SceneMirror.Subscriber mirrorSubscriber;
+    JMenuItem publishItem;
+    /** The instance Edit Symbol took apart, until the edit is finished. */
+    GInstance editingSymbol; JMenuItem editSymbolItem;
+    final ArrayList<JMenuItem> documentItems = new ArrayList<>();
+    boolean readOnly = false;
+    /** An out-of-core drawing being browsed read-only; its visible pages are drawn into the static layer. */
+    PagedGraph paged;
+
+    /** Named commands that need no dialog; menus go through runAction so sessions can record and replay them. */
+    final java.util.LinkedHashMap<String, Runnable> actions = new java.util.LinkedHashMap<>();
+    SessionRecorder recorder;
+    JMenuItem recordItem;
+    DragPacer dragPacer;
 
     private static final java.util.logging.Logger logger = java.util.logging.Logger.getLogger(Source.class.getName());
 
@@ -52,21 +75,26 @@ public class Source extends JFrame {
         canvasPnl.setLayout(new BorderLayout());
         canvas = new GraphCanvas();
         canvasPnl.add(canvas, BorderLayout.CENTER);
+        sceneListeners.add(canvas);
+        sceneModel = new SceneModel(() -> canvas.objects);
+        sceneListeners.add(sceneModel);
 
         PanningHandler panner = new PanningHandler();
-        canvas.addMouseListener(panner);
-        canvas.addMouseMotionListener(panner);
-
         DrawingHandler drawer = new DrawingHandler();
-        canvas.addMouseListener(drawer);
-        canvas.addMouseMotionListener(drawer);
-
         SelectHandler selector = new SelectHandler();
+
+        // Drags reach the handlers at most once per display frame; the pacer goes first so it can flush on release
+        dragPacer = new DragPacer(panner, drawer, selector);
+        canvas.addMouseListener(dragPacer);
+        canvas.addMouseMotionListener(dragPacer);
+
+        canvas.addMouseListener(panner);
+        canvas.addMouseListener(drawer);
         canvas.addMouseListener(selector);
-        canvas.addMouseMotionListener(selector);
 
         canvas.addMouseWheelListener(new ScaleHandler());
 
+        registerActions();
         setupLayerManager();
 
         Color iconColor = new Color(80, 80, 80);
@@ -92,7 +120,7 @@ public class Source extends JFrame {
 
         JButton delBtn = new JButton(new TrashIcon(s, Color.RED));
         styleButton(delBtn, "Delete Selected");
-        delBtn.addActionListener(e -> deleteSelected());
+        delBtn.addActionListener(e -> runAction("delete"));
         editPnl.add(delBtn);
 
         JCheckBox snapBox = new JCheckBox("Grid Snap");
@@ -127,7 +155,8 @@ public class Source extends JFrame {
         btn.setIcon(icon);
         btn.setToolTipText(tip);
         for(ActionListener al : btn.getActionListeners()) btn.removeActionListener(al);
-        btn.addActionListener(e -> { currentMode = mode; });
+        actions.put("mode:" + mode, () -> currentMode = mode);
+        btn.addActionListener(e -> { if(!readOnly) runAction("mode:" + mode); });
     }
 
     private void styleButton(JButton btn, String tip) {
@@ -139,6 +168,9 @@ public class Source extends JFrame {
 
     private void setupLayerManager() {
         objManagerPnl.setLayout(new BorderLayout());
+        minimap = new Minimap(canvas, () -> sceneModel.snapshot().objects);
+        sceneListeners.add(minimap);
+        objManagerPnl.add(minimap, BorderLayout.NORTH);
         layerModel = new DefaultListModel<>();
         layerList = new JList<>(layerModel);
         layerList.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
@@ -148,18 +180,27 @@ public class Source extends JFrame {
                 super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
                 if (value instanceof GraphObject) {
                     GraphObject obj = (GraphObject) value;
-                    setText(obj.name); setIcon(new ColorSwatchIcon(12, obj.color));
+                    String arrow = obj instanceof GGroup ? (((GGroup) obj).expanded ? "\u25BE " : "\u25B8 ") : "";
+                    setText(arrow + obj.name); setIcon(new ColorSwatchIcon(12, obj.color));
+                    setBorder(BorderFactory.createEmptyBorder(0, 2 + layerDepth.getOrDefault(obj, 0) * 14, 0, 0));
                 } return this;
             }
         });
         layerList.addListSelectionListener(e -> {
             if (e.getValueIsAdjusting() || ignoreLayerEvents) return;
-            for (GraphObject o : canvas.objects) o.isSelected = false;
-            for (GraphObject sel : layerList.getSelectedValuesList()) sel.isSelected = true;
-            canvas.repaint();
+            java.util.List<GraphObject> sel = layerList.getSelectedValuesList();
+            if (recorder != null) recorder.select(sel);
+            selectOnly(sel);
         });
         layerList.addMouseListener(new MouseAdapter() {
             public void mouseClicked(MouseEvent e) {
+                int idx = layerList.locationToIndex(e.getPoint());
+                if (idx >= 0 && SwingUtilities.isLeftMouseButton(e) && layerModel.get(idx) instanceof GGroup) {
+                    // The arrow sits after the indent and colour swatch; clicking it expands or collapses the group
+                    GGroup g = (GGroup) layerModel.get(idx);
+                    if (e.getX() < 2 + layerDepth.getOrDefault(g, 0) * 14 + 30) { g.expanded = !g.expanded; refreshLayers(); updateLayerSelection(); return; }
+                }
+                if (readOnly) return;
                 if (e.getClickCount() == 2) renameSelected();
                 if (SwingUtilities.isRightMouseButton(e)) {
                     layerList.setSelectedIndex(layerList.locationToIndex(e.getPoint()));
@@ -167,29 +208,54 @@ public class Source extends JFrame {
                 }
             }
         });
+        // Dragging rows moves the selection to where they are dropped
+        layerList.setDragEnabled(true); layerList.setDropMode(DropMode.INSERT);
+        layerList.setTransferHandler(new TransferHandler() {
+            boolean dragging;
+            @Override public int getSourceActions(JComponent c) { return readOnly ? NONE : MOVE; }
+            @Override protected java.awt.datatransfer.Transferable createTransferable(JComponent c) { dragging = true; return new java.awt.datatransfer.StringSelection(""); }
+            @Override protected void exportDone(JComponent c, java.awt.datatransfer.Transferable t, int action) { dragging = false; }
+            @Override public boolean canImport(TransferSupport s) { return dragging && s.isDrop(); }
+            @Override public boolean importData(TransferSupport s) {
+                if (!canImport(s)) return false;
+                dropSelection(((JList.DropLocation) s.getDropLocation()).getIndex()); return true;
+            }
+        });
         objManagerPnl.add(new JScrollPane(layerList), BorderLayout.CENTER);
 
         JPanel ctrl = new JPanel(new GridLayout(1, 2));
-        JButton up = new JButton("Up"); up.addActionListener(e -> moveLayer(1));
-        JButton dn = new JButton("Down"); dn.addActionListener(e -> moveLayer(-1));
+        JButton up = new JButton("Up"); up.addActionListener(e -> runAction("z-forward"));
+        JButton dn = new JButton("Down"); dn.addActionListener(e -> runAction("z-backward"));
         ctrl.add(up); ctrl.add(dn);
         objManagerPnl.add(ctrl, BorderLayout.SOUTH);
     }
 
+    /** Selects exactly these objects, which may be children of groups (the layer list shows them when expanded). */
+    void selectOnly(java.util.Collection<GraphObject> sel) {
+        for (GraphObject o : canvas.objects) { o.isSelected = false; if (o instanceof GGroup) ((GGroup) o).clearChildSelection(); }
+        for (GraphObject o : sel) o.isSelected = true;
+        canvas.repaint();
+    }
+
     private void pickColor(JButton btn) {
         Color c = JColorChooser.showDialog(this, "Color", currentColor);
         if(c!=null) {
-            currentColor = c;
             btn.setIcon(new ColorSwatchIcon(20, c));
-            boolean changed = false;
-            for(GraphObject o : canvas.objects) {
-                if(o.isSelected) {
-                    if(!changed) { undoManager.saveState(canvas.objects); changed=true; }
-                    o.color = c;
-                }
+            if (recorder != null) recorder.color(c);
+            applyColor(c);
+        }
+    }
+    /** Makes c the drawing colour and gives it to the selected objects, as one undo step. */
+    void applyColor(Color c) {
+        currentColor = c;
+        boolean changed = false;
+        for(GraphObject o : canvas.objects) {
+            if(o.isSelected) {
+                if(!changed) { undoManager.saveState(canvas.objects); changed=true; }
+                o.restyle(c, o.strokeWidth); fireRestyled(o);
             }
-            if(changed) { canvas.repaint(); refreshLayers(); }
         }
+        if(changed) { canvas.repaint(); refreshLayers(); }
     }
 
     private void changeStroke() {
@@ -197,37 +263,69 @@ public class Source extends JFrame {
         try {
             float f = Float.parseFloat(in);
             if(f>0) {
-                currentStroke = f;
-                boolean changed = false;
-                for(GraphObject o : canvas.objects) {
-                    if(o.isSelected) {
-                        if(!changed) { undoManager.saveState(canvas.objects); changed=true; }
-                        o.strokeWidth=f;
-                    }
-                }
-                if(changed) canvas.repaint();
+                if (recorder != null) recorder.stroke(f);
+                applyStroke(f);
             }
         } catch(Exception e){}
     }
+    /** Makes w the stroke width and gives it to the selected objects, as one undo step. */
+    void applyStroke(float w) {
+        currentStroke = w;
+        boolean changed = false;
+        for(GraphObject o : canvas.objects) {
+            if(o.isSelected) {
+                if(!changed) { undoManager.saveState(canvas.objects); changed=true; }
+                o.restyle(o.color, w); fireRestyled(o);
+            }
+        }
+        if(changed) canvas.repaint();
+    }
 
     private void refreshLayers() {
-        ignoreLayerEvents = true; layerModel.clear();
-        for (int i = canvas.objects.size() - 1; i >= 0; i--) layerModel.addElement(canvas.objects.get(i));
+        ignoreLayerEvents = true; layerDepth.clear();
+        ArrayList<GraphObject> rows = new ArrayList<>(canvas.objects.size());
+        for (int i = canvas.objects.size() - 1; i >= 0; i--) addLayerRow(rows, canvas.objects.get(i), 0);
+        layerModel.clear(); layerModel.addAll(rows); // one list event instead of one per row
+        ignoreLayerEvents = false;
+    }
+    private void addLayerRow(ArrayList<GraphObject> rows, GraphObject o, int depth) {
+        rows.add(o); if (depth > 0) layerDepth.put(o, depth);
+        if (o instanceof GGroup && ((GGroup) o).expanded) { ArrayList<GraphObject> k = ((GGroup) o).children; for (int i = k.size() - 1; i >= 0; i--) addLayerRow(rows, k.get(i), depth + 1); }
+    }
+    /** Rewrites the rows of objects [from, from + count) after a reorder; rows map straight to objects unless a group is expanded. */
+    private void reorderLayers(int from, int count) {
+        int n = canvas.objects.size();
+        if (!layerDepth.isEmpty() || layerModel.size() != n) { refreshLayers(); return; }
+        ignoreLayerEvents = true;
+        for (int i = from; i < from + count; i++) if (layerModel.get(n - 1 - i) != canvas.objects.get(i)) layerModel.set(n - 1 - i, canvas.objects.get(i));
         ignoreLayerEvents = false;
     }
     private void updateLayerSelection() {
-        ignoreLayerEvents = true; layerList.clearSelection();
-        for (GraphObject o : canvas.objects) if (o.isSelected) layerList.setSelectedValue(o, false);
+        ignoreLayerEvents = true;
+        int[] rows = new int[layerModel.size()]; int k = 0;
+        for (int r = 0; r < rows.length; r++) { GraphObject o = layerModel.get(r); if (o.isSelected && !layerDepth.containsKey(o)) rows[k++] = r; }
+        layerList.setSelectedIndices(java.util.Arrays.copyOf(rows, k));
         ignoreLayerEvents = false;
     }
-    private void moveLayer(int dir) {
-        GraphObject sel = getSelectedObject();
-        if(sel == null) return;
-        int idx = canvas.objects.indexOf(sel); int newIdx = idx + dir;
-        if(newIdx >= 0 && newIdx < canvas.objects.size()) {
-            undoManager.saveState(canvas.objects);
-            Collections.swap(canvas.objects, idx, newIdx);
-            refreshLayers(); updateLayerSelection(); canvas.repaint();
+    /** Moves the selection through the z-order (see ZOrder); one undo entry holding just the stretches that changed. */
+    private void reorderSelection(ZOrder.Move move, int arg) {
+        int[] idx = selectedIndices();
+        if (idx.length == 0 || readOnly) return;
+        ZOrder.ReorderEdit e = ZOrder.reorder(canvas.objects, idx, move, arg);
+        if (e == null) return;
+        undoManager.record(e);
+        for (int r = 0; r < e.from.size(); r++) { fireReordered(e.from.get(r), java.util.Arrays.asList(e.after.get(r))); reorderLayers(e.from.get(r), e.after.get(r).length); }
+        updateLayerSelection(); canvas.repaint();
+    }
+    /** A layer-list drop before row: the selection goes above the first unselected top-level row from there down, or below the last one above. */
+    private void dropSelection(int row) {
+        for (int r = row; r < layerModel.size(); r++) {
+            GraphObject o = layerModel.get(r);
+            if (!o.isSelected && !layerDepth.containsKey(o)) { reorderSelection(ZOrder.Move.ABOVE, canvas.objects.indexOf(o)); return; }
+        }
+        for (int r = Math.min(row, layerModel.size()) - 1; r >= 0; r--) {
+            GraphObject o = layerModel.get(r);
+            if (!o.isSelected && !layerDepth.containsKey(o)) { reorderSelection(ZOrder.Move.BELOW, canvas.objects.indexOf(o)); return; }
         }
     }
     private GraphObject getSelectedObject() { for(GraphObject o : canvas.objects) if(o.isSelected) return o; return null; }
@@ -235,37 +333,210 @@ public class Source extends JFrame {
         GraphObject sel = getSelectedObject();
         if(sel != null) {
             String n = JOptionPane.showInputDialog(this, "Rename:", sel.name);
-            if(n!=null) { undoManager.saveState(canvas.objects); sel.name=n; objManagerPnl.repaint(); }
+            if(n!=null) { undoManager.saveState(canvas.objects); sel.name=n; fireRestyled(sel); objManagerPnl.repaint(); }
         }
     }
     private void deleteSelected() {
         ArrayList<GraphObject> rem = new ArrayList<>();
         for(GraphObject o : canvas.objects) if(o.isSelected) rem.add(o);
-        if(!rem.isEmpty()) {
+        if(!rem.isEmpty() && !readOnly) {
             undoManager.saveState(canvas.objects);
-            canvas.objects.removeAll(rem);
+            // Lines left behind by a deleted point keep their position but no longer follow the selection
+            java.util.List<GraphObject> released = Links.removed(rem);
+            canvas.objects.removeAll(rem); fireRemoved(rem); fireReshaped(released);
             canvas.repaint(); refreshLayers();
         }
     }
+    private void groupSelected() {
+        ArrayList<GraphObject> sel = new ArrayList<>(); int top = -1;
+        for (int i = 0; i < canvas.objects.size(); i++) if (canvas.objects.get(i).isSelected) { sel.add(canvas.objects.get(i)); top = i; }
+        if (sel.size() < 2) return;
+        undoManager.saveState(canvas.objects);
+        java.util.List<GraphObject> cut = Links.detachAcross(sel); // children live in the group's coordinates, so links can't cross its edge
+        canvas.objects.removeIf(o -> o.isSelected);
+        for (GraphObject o : sel) o.isSelected = false;
+        GGroup g = new GGroup(sel); g.isSelected = true;
+        canvas.objects.add(top - sel.size() + 1, g); fireRemoved(sel); fireAdded(top - sel.size() + 1, g); fireReshaped(cut);
+        canvas.repaint(); refreshLayers(); updateLayerSelection();
+    }
+    // Children take the group's transform into their own geometry and replace the group in z-order
+    private void ungroupSelected() {
+        boolean any = false; for (GraphObject o : canvas.objects) if (o.isSelected && o instanceof GGroup) { any = true; break; }
+        if (!any) return;
+        undoManager.saveState(canvas.objects);
+        ArrayList<GraphObject> out = new ArrayList<>(canvas.objects.size());
+        for (GraphObject o : canvas.objects) {
+            if (!(o.isSelected && o instanceof GGroup)) { out.add(o); continue; }
+            GGroup g = (GGroup) o; fireRemoved(Collections.singletonList(g));
+            for (GraphObject c : g.children) { GraphObject k = g.transform.isIdentity() ? c : c.transformed(g.transform); k.isSelected = true; fireAdded(out.size(), k); out.add(k); }
+        }
+        canvas.objects = out;
+        canvas.repaint(); refreshLayers(); updateLayerSelection();
+    }
+    /** Copies the selection one grid step down and to the right and selects the copies; symbol instances share their definition. */
+    private void duplicateSelected() {
+        ArrayList<GraphObject> sel = new ArrayList<>();
+        for (GraphObject o : canvas.objects) if (o.isSelected) sel.add(o);
+        if (sel.isEmpty() || readOnly) return;
+        undoManager.saveState(canvas.objects);
+        ArrayList<GraphObject> copies = Links.copyScene(sel); // links to objects left behind are cut
+        for (GraphObject o : sel) o.isSelected = false;
+        for (GraphObject c : copies) { c.move(GRID_SIZE, GRID_SIZE); c.isSelected = true; canvas.objects.add(c); fireAdded(canvas.objects.size() - 1, c); }
+        canvas.repaint(); refreshLayers(); updateLayerSelection();
+    }
+    /** Replaces the selection with one instance of a new symbol made from it, placed at the centre of its bounds. */
+    private void createSymbol() {
+        int[] idx = selectedIndices();
+        if (idx.length == 0 || readOnly) return;
+        String name = JOptionPane.showInputDialog(this, "Symbol name:", "Symbol");
+        if (name == null || name.trim().isEmpty()) return;
+        Rectangle2D b = BulkTransform.bounds(canvas.objects, idx);
+        ArrayList<GraphObject> sel = new ArrayList<>(idx.length); for (int i : idx) sel.add(canvas.objects.get(i));
+        SymbolDef def = SymbolDef.of(name.trim(), sel, AffineTransform.getTranslateInstance(-b.getCenterX(), -b.getCenterY()));
+        replaceWithInstance(sel, idx[idx.length - 1], new GInstance(def, AffineTransform.getTranslateInstance(b.getCenterX(), b.getCenterY())));
+    }
+    // Like grouping: the selection leaves, and the instance takes the place of its topmost object
+    private void replaceWithInstance(ArrayList<GraphObject> sel, int top, GInstance inst) {
+        undoManager.saveState(canvas.objects);
+        java.util.List<GraphObject> released = Links.removed(sel); // symbol parts keep no links
+        canvas.objects.removeIf(o -> o.isSelected);
+        for (GraphObject o : sel) o.isSelected = false;
+        inst.isSelected = true;
+        int at = top - sel.size() + 1;
+        canvas.objects.add(at, inst); fireRemoved(sel); fireAdded(at, inst); fireReshaped(released);
+        canvas.repaint(); refreshLayers(); updateLayerSelection();
+    }
+    /**
+     * Takes the one selected instance apart so its symbol can be edited with the ordinary tools. Run
+     * again, it turns the selection back into the symbol: that placement and every other instance
+     * of the symbol switch to the new definition, as one undo step.
+     */
+    private void toggleSymbolEdit() {
+        if (readOnly) return;
+        int[] idx = selectedIndices();
+        if (editingSymbol == null) {
+            if (idx.length != 1 || !(canvas.objects.get(idx[0]) instanceof GInstance)) return;
+            GInstance inst = (GInstance) canvas.objects.get(idx[0]);
+            undoManager.saveState(canvas.objects);
+            java.util.List<GraphObject> parts = inst.def.parts(inst.transform);
+            canvas.objects.remove(idx[0]); fireRemoved(Collections.singletonList(inst));
+            for (int k = 0; k < parts.size(); k++) { GraphObject p = parts.get(k); p.isSelected = true; canvas.objects.add(idx[0] + k, p); fireAdded(idx[0] + k, p); }
+            editingSymbol = inst; editSymbolItem.setText("Finish Editing Symbol");
+            canvas.repaint(); refreshLayers(); updateLayerSelection();
+            return;
+        }
+        GInstance was = editingSymbol;
+        leaveSymbolEdit();
+        if (idx.length == 0) return;
+        AffineTransform toSymbol;
+        try { toSymbol = was.transform.createInverse(); } catch (NoninvertibleTransformException ex) { return; }
+        ArrayList<GraphObject> sel = new ArrayList<>(idx.length); for (int i : idx) sel.add(canvas.objects.get(i));
+        SymbolDef def = SymbolDef.of(was.def.name, sel, toSymbol);
+        GInstance inst = (GInstance) was.copy(); inst.def = def; inst.rebuildShape(); // keeps its name and style
+        replaceWithInstance(sel, idx[idx.length - 1], inst);
+        if (redefine(canvas.objects, was.def, def, true)) canvas.repaint();
+    }
+    /** Drops an unfinished symbol edit, e.g. when undo or loading replaces the parts it was taken apart into. */
+    private void leaveSymbolEdit() { editingSymbol = null; editSymbolItem.setText("Edit Symbol"); }
+    private boolean redefine(java.util.List<GraphObject> objs, SymbolDef old, SymbolDef def, boolean top) {
+        boolean any = false;
+        for (GraphObject o : objs) {
+            boolean hit = o instanceof GInstance && ((GInstance) o).def == old;
+            if (hit) ((GInstance) o).def = def;
+            else hit = o instanceof GGroup && redefine(((GGroup) o).children, old, def, false);
+            if (!hit) continue;
+            o.rebuildShape(); any = true;
+            if (top) fireChanged(o);
+        }
+        return any;
+    }
+    private int[] selectedIndices() {
+        int n = 0; for (GraphObject o : canvas.objects) if (o.isSelected) n++;
+        int[] idx = new int[n]; n = 0;
+        for (int i = 0; i < canvas.objects.size(); i++) if (canvas.objects.get(i).isSelected) idx[n++] = i;
+        return idx;
+    }
+    private static AffineTransform about(Rectangle2D b, double sx, double sy) {
+        AffineTransform at = AffineTransform.getTranslateInstance(b.getCenterX(), b.getCenterY()); at.scale(sx, sy); at.translate(-b.getCenterX(), -b.getCenterY()); return at;
+    }
+    /** Rotate, scale or mirror the selection with a transform built from its bounds; one undo entry. */
+    private void transformSelection(java.util.function.Function<Rectangle2D, AffineTransform> build) {
+        int[] idx = selectedIndices();
+        if (idx.length == 0 || readOnly) return;
+        AffineTransform at = build.apply(BulkTransform.bounds(canvas.objects, idx));
+        if (at.getDeterminant() == 0) return;
+        GraphObject[] before = new GraphObject[idx.length]; for (int k = 0; k < idx.length; k++) before[k] = canvas.objects.get(idx[k]);
+        undoManager.record(BulkTransform.transform(canvas.objects, idx, at));
+        ArrayList<GraphObject> same = new ArrayList<>(idx.length);
+        for (int k = 0; k < idx.length; k++) {
+            GraphObject now = canvas.objects.get(idx[k]);
+            if (now == before[k]) same.add(now); else { fireRemoved(Collections.singletonList(before[k])); fireAdded(idx[k], now); }
+        }
+        fireTransformed(same, at);
+        ArrayList<GraphObject> now = new ArrayList<>(idx.length); for (int i : idx) now.add(canvas.objects.get(i));
+        fireReshaped(Links.settle(now));
+        canvas.repaint(); if (same.size() < idx.length) { refreshLayers(); updateLayerSelection(); }
+    }
+    /** Align or distribute: needs at least min selected objects; each one moves by its own offset. */
+    private void arrangeSelection(java.util.function.Function<int[], Edit> command, int min) {
+        int[] idx = selectedIndices();
+        if (idx.length < min || readOnly) return;
+        BulkTransform.MoveEdit e = (BulkTransform.MoveEdit) command.apply(idx);
+        undoManager.record(e);
+        ArrayList<GraphObject> moved = new ArrayList<>(idx.length);
+        for (int k = 0; k < idx.length; k++) if (e.dx[k] != 0 || e.dy[k] != 0) { GraphObject o = canvas.objects.get(idx[k]); moved.add(o); fireMoved(Collections.singletonList(o), e.dx[k], e.dy[k]); }
+        fireReshaped(Links.settle(moved));
+        canvas.repaint();
+    }
     private double snap(double v) { return snapToGrid ? Math.round(v/GRID_SIZE)*GRID_SIZE : v; }
+    /** The topmost point under p, for attaching line ends. */
+    private GPoint pointAt(Point2D p) { for(int i=canvas.objects.size()-1; i>=0; i--) if(canvas.objects.get(i) instanceof GPoint && canvas.objects.get(i).contains(p)) return (GPoint)canvas.objects.get(i); return null; }
 
     private void saveGraph() {
         File f = showNativeSaveDialog();
         if (f == null) return;
         if (!f.getName().toLowerCase().endsWith(".graph")) f = new File(f.getParent(), f.getName() + ".graph");
-        try (java.io.ObjectOutputStream out = new java.io.ObjectOutputStream(new java.io.FileOutputStream(f))) {
-            out.writeObject(canvas.objects);
-        } catch (Exception ex) { JOptionPane.showMessageDialog(this, "Error: " + ex.getMessage()); }
+        // Written from a snapshot on a worker, so editing can go on while a large drawing is saved
+        File target = f; SceneModel.Snapshot snap = sceneModel.snapshot();
+        new SwingWorker<Void, Void>() {
+            @Override protected Void doInBackground() throws Exception { writeGraph(target, new ArrayList<>(snap.objects)); return null; }
+            @Override protected void done() { try { get(); } catch (Exception ex) { JOptionPane.showMessageDialog(Source.this, "Error: " + (ex.getCause() != null ? ex.getCause().getMessage() : ex.getMessage())); } }
+        }.execute();
+    }
+    static void writeGraph(File f, ArrayList<GraphObject> objects) throws java.io.IOException {
+        try (java.io.ObjectOutputStream out = new java.io.ObjectOutputStream(new java.io.BufferedOutputStream(new java.io.FileOutputStream(f), 1 << 16))) {
+            out.writeObject(objects);
+        }
     }
     private void loadGraph() {
         File f = showNativeLoadDialog();
         if (f == null) return;
-        try (java.io.ObjectInputStream in = new java.io.ObjectInputStream(new java.io.FileInputStream(f))) {
+        try { installGraph(readGraph(f)); }
+        catch (Exception ex) { JOptionPane.showMessageDialog(this, "Error: " + ex.getMessage()); }
+    }
+    /** Reads and prepares a .graph file without touching the UI, so it can run on any thread. */
+    @SuppressWarnings("unchecked")
+    static ArrayList<GraphObject> readGraph(File f) throws java.io.IOException, ClassNotFoundException {
+        try (java.io.ObjectInputStream in = new java.io.ObjectInputStream(new java.io.BufferedInputStream(new java.io.FileInputStream(f), 1 << 16))) {
             ArrayList<GraphObject> loaded = (ArrayList<GraphObject>) in.readObject();
             for (GraphObject o : loaded) o.rebuildShape();
-            canvas.objects = loaded;
-            undoManager = new UndoManager(); refreshLayers(); canvas.repaint();
-        } catch (Exception ex) { JOptionPane.showMessageDialog(this, "Error: " + ex.getMessage()); }
+            Links.relink(loaded);
+            return loaded;
+        }
+    }
+    void installGraph(ArrayList<GraphObject> loaded) {
+        canvas.objects = loaded; fireReset(loaded); leaveSymbolEdit();
+        undoManager = new UndoManager(); refreshLayers(); canvas.repaint();
+    }
+    /** Installs a document whose loading was started before this window existed (see Main). */
+    void openWhenLoaded(File f, java.util.concurrent.CompletableFuture<ArrayList<GraphObject>> pending, Runnable then) {
+        setTitle(f.getName() + " (loading...)");
+        pending.whenComplete((loaded, ex) -> SwingUtilities.invokeLater(() -> {
+            setTitle(f.getName());
+            if (ex != null) { Throwable cause = ex.getCause() != null ? ex.getCause() : ex; JOptionPane.showMessageDialog(this, "Error: " + cause.getMessage()); }
+            else installGraph(loaded);
+            if (then != null) then.run();
+        }));
     }
     private void exportImage() {
         // 1. Deselect everything temporarily for a clean image
@@ -310,13 +581,244 @@ public class Source extends JFrame {
         canvas.repaint(); // Refresh to show selection again
     }
 
+    private void findIntersections() {
+        // Segments are gathered from a snapshot on the worker, so the sweep never touches the live objects
+        SceneModel.Snapshot snap = sceneModel.snapshot();
+        ProgressMonitor monitor = new ProgressMonitor(this, "Finding intersections", null, 0, 100);
+        monitor.setMillisToDecideToPopup(300);
+        SwingWorker<double[], Void> worker = new SwingWorker<>() {
+            @Override protected double[] doInBackground() {
+                SegmentBuffer buf = new SegmentBuffer(); buf.collect(snap.objects, new AffineTransform());
+                if (buf.count < 2) return new double[0];
+                return IntersectionFinder.find(buf.xy, buf.count, (done, total) -> { setProgress(Math.min(99, (int) (100L * done / total))); return !isCancelled(); });
+            }
+            @Override protected void done() {
+                monitor.close();
+                if (isCancelled()) return;
+                try {
+                    double[] hits = get();
+                    if (hits == null) return;
+                    if (hits.length == 0) { JOptionPane.showMessageDialog(Source.this, "No intersections found."); return; }
+                    undoManager.saveState(canvas.objects);
+                    for (GraphObject o : canvas.objects) o.isSelected = false;
+                    for (int i = 0; i < hits.length; i += 2) {
+                        GPoint p = new GPoint(hits[i], hits[i+1], "X" + (i/2 + 1));
+                        p.isSelected = true; canvas.objects.add(p); fireAdded(canvas.objects.size() - 1, p);
+                    }
+                    canvas.repaint(); refreshLayers(); updateLayerSelection();
+                } catch (Exception ex) { JOptionPane.showMessageDialog(Source.this, "Error: " + ex.getMessage()); }
+            }
+        };
+        worker.addPropertyChangeListener(e -> {
+            if ("progress".equals(e.getPropertyName())) monitor.setProgress((Integer) e.getNewValue());
+            if (monitor.isCanceled()) worker.cancel(true);
+        });
+        worker.execute();
+    }
+
+    private enum Analysis { COMPONENTS, SHORTEST_PATH, DEGREES }
+    /** Runs GraphAnalysis over the top-level points and lines and selects the result. */
+    private void analyseNetwork(Analysis kind) {
+        // The worker reads a snapshot; only the path's end points are taken from the live selection
+        SceneModel.Snapshot snap = sceneModel.snapshot();
+        int source = -1, target = -1, picked = 0;
+        for (int i = 0; i < canvas.objects.size(); i++) if (canvas.objects.get(i) instanceof GPoint && canvas.objects.get(i).isSelected) { if (picked++ == 0) source = i; else target = i; }
+        if (kind == Analysis.SHORTEST_PATH && picked != 2) { JOptionPane.showMessageDialog(this, "Select exactly two points."); return; }
+        final int from = source, to = target;
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        new SwingWorker<GraphAnalysis, Void>() {
+            final ArrayList<GPoint> nodes = new ArrayList<>(); final ArrayList<GLine> lines = new ArrayList<>();
+            GraphAnalysis.Components components; GraphAnalysis.Path path; GraphAnalysis.Degrees degrees;
+            @Override protected GraphAnalysis doInBackground() {
+                java.util.IdentityHashMap<GPoint, Integer> attached = new java.util.IdentityHashMap<>();
+                int fromNode = -1, toNode = -1;
+                for (int i = 0; i < snap.objects.size(); i++) {
+                    GraphObject o = snap.objects.get(i);
+                    if (o instanceof GPoint) { if (i == from) fromNode = nodes.size(); if (i == to) toNode = nodes.size(); nodes.add((GPoint) o); }
+                    else if (o instanceof GLine) { GLine l = (GLine) o; lines.add(l); if (l.start != null) attached.put(l.start, -1); if (l.end != null) attached.put(l.end, -1); }
+                }
+                if (nodes.isEmpty()) return null;
+                for (int i = 0; i < nodes.size(); i++) if (attached.containsKey(nodes.get(i))) attached.put(nodes.get(i), i);
+                double[] nx = new double[nodes.size()], ny = new double[nodes.size()], xy = new double[lines.size() * 4];
+                int[] startNode = new int[lines.size()], endNode = new int[lines.size()];
+                for (int i = 0; i < nx.length; i++) { nx[i] = nodes.get(i).x; ny[i] = nodes.get(i).y; }
+                for (int i = 0; i < lines.size(); i++) {
+                    GLine l = lines.get(i); xy[4*i] = l.x1; xy[4*i+1] = l.y1; xy[4*i+2] = l.x2; xy[4*i+3] = l.y2;
+                    startNode[i] = l.start == null ? -1 : attached.get(l.start); endNode[i] = l.end == null ? -1 : attached.get(l.end);
+                }
+                GraphAnalysis g = GraphAnalysis.build(nx, ny, nx.length, xy, startNode, endNode, lines.size());
+                switch (kind) {
+                    case COMPONENTS: components = g.components(); break;
+                    case SHORTEST_PATH: path = g.shortestPath(fromNode, toNode); break;
+                    case DEGREES: degrees = g.degrees(); break;
+                }
+                return g;
+            }
+            @Override protected void done() {
+                setCursor(Cursor.getDefaultCursor());
+                GraphAnalysis g;
+                try { g = get(); } catch (Exception ex) { JOptionPane.showMessageDialog(Source.this, "Error: " + ex.getMessage()); return; }
+                if (g == null) { JOptionPane.showMessageDialog(Source.this, "There are no points to analyse."); return; }
+                String message;
+                if (kind == Analysis.SHORTEST_PATH && path == null) { JOptionPane.showMessageDialog(Source.this, "The two points are not connected."); return; }
+                for (GraphObject o : canvas.objects) o.isSelected = false;
+                switch (kind) {
+                    case COMPONENTS: {
+                        int largest = components.largest();
+                        for (int v = 0; v < g.nodeCount; v++) if (components.label[v] == largest) selectNode(g, v, nodes, lines);
+                        int isolated = 0; for (int size : components.size) if (size == 1) isolated++;
+                        message = String.format("%d components among %d points and %d edges.%nThe largest, now selected, has %d points; %d points are isolated.",
+                                components.count, g.nodeCount, g.edgeCount, components.size[largest], isolated);
+                        break;
+                    }
+                    case SHORTEST_PATH:
+                        for (int v : path.nodes) selectLive(nodes.get(v));
+                        for (int e : path.edges) selectLive(lines.get(g.edgeLine[e]));
+                        message = String.format("Shortest path: %d edges, length %.2f.", path.edges.length, path.length);
+                        break;
+                    default: {
+                        for (int v : degrees.hubs) selectNode(g, v, nodes, lines);
+                        StringBuilder sb = new StringBuilder(String.format("Degree: min %d, max %d, mean %.2f; %d isolated points.%n%d point(s) of degree %d are selected.%n%nDistribution:",
+                                degrees.min, degrees.max, degrees.mean, degrees.isolated, degrees.hubs.length, degrees.max));
+                        for (int i = 0; i < degrees.histogram.length; i++) {
+                            int lo = (1 << i) - 1, hi = (1 << (i + 1)) - 2;
+                            sb.append(String.format("%n%s: %d", lo == hi ? String.valueOf(lo) : lo + "-" + hi, degrees.histogram[i]));
+                        }
+                        message = sb.toString();
+                    }
+                }
+                canvas.repaint(); updateLayerSelection();
+                JOptionPane.showMessageDialog(Source.this, message);
+            }
+        }.execute();
+    }
+    /** Selects a node's point and the lines of its edges. */
+    private void selectNode(GraphAnalysis g, int v, ArrayList<GPoint> nodes, ArrayList<GLine> lines) {
+        selectLive(nodes.get(v));
+        for (int k = g.adjStart[v]; k < g.adjStart[v + 1]; k++) selectLive(lines.get(g.edgeLine[g.adjEdge[k]]));
+    }
+    /** Selects what a snapshot object was copied from, unless that has been edited or deleted since. */
+    private void selectLive(GraphObject frozen) { GraphObject o = sceneModel.liveFor(frozen); if (o != null) o.isSelected = true; }
+
+    private void importPointCloud() {
+        FileDialog fd = new FileDialog(this, "Import Point Cloud", FileDialog.LOAD); fd.setVisible(true);
+        if (fd.getFile() == null) return;
+        File f = new File(fd.getDirectory(), fd.getFile());
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        new SwingWorker<PointCloud, Void>() {
+            @Override protected PointCloud doInBackground() throws Exception { return PointCloud.importText(f); }
+            @Override protected void done() {
+                setCursor(Cursor.getDefaultCursor());
+                try {
+                    PointCloud pc = get();
+                    if (pc.count == 0) { JOptionPane.showMessageDialog(Source.this, "No points found in " + f.getName()); return; }
+                    undoManager.saveState(canvas.objects);
+                    GPointCloud o = new GPointCloud(pc, currentColor); o.name = f.getName() + " (" + pc.count + " pts)";
+                    canvas.objects.add(o); fireAdded(canvas.objects.size() - 1, o); canvas.repaint(); refreshLayers();
+                } catch (Exception ex) { JOptionPane.showMessageDialog(Source.this, "Error: " + ex.getMessage()); }
+            }
+        }.execute();
+    }
+
+    private void togglePublishing() {
+        if (mirrorPublisher != null) { sceneListeners.remove(mirrorPublisher); mirrorPublisher.close(); mirrorPublisher = null; publishItem.setText("Publish Mirror..."); return; }
+        String in = JOptionPane.showInputDialog(this, "Port (or address:port to serve other machines):", SceneMirror.DEFAULT_PORT);
+        if (in == null) return;
+        try { startPublishing(in.trim()); }
+        catch (Exception ex) { JOptionPane.showMessageDialog(this, "Error: " + ex.getMessage()); }
+    }
+    /** Serves this document read-only to viewers at "PORT" (this machine only) or "ADDRESS:PORT"; edits stream out as they happen. */
+    void startPublishing(String address) throws java.io.IOException {
+        mirrorPublisher = new SceneMirror.Publisher(SceneMirror.bindAddress(address), () -> canvas.objects);
+        sceneListeners.add(mirrorPublisher);
+        publishItem.setText("Stop Publishing (port " + mirrorPublisher.port() + ")");
+    }
+    /** Turns this window into a read-only viewer of a publisher at host:port. */
+    void followMirror(String target) {
+        int colon = target.lastIndexOf(':');
+        try {
+            String host = colon > 0 ? target.substring(0, colon) : target;
+            int port = colon > 0 ? Integer.parseInt(target.substring(colon + 1)) : SceneMirror.DEFAULT_PORT;
+            mirrorSubscriber = new SceneMirror.Subscriber(host, port, new SceneMirror.View() {
+                public ArrayList<GraphObject> objects() { return canvas.objects; }
+                public void setObjects(ArrayList<GraphObject> objects) { canvas.objects = objects; }
+                public void refresh(boolean structural) { if (structural) refreshLayers(); sceneModel.invalidate(); minimap.rebuild(); canvas.invalidateStatic(); canvas.repaint(); }
+                public void disconnected(String reason) { setTitle("Mirror of " + target + " (disconnected)"); JOptionPane.showMessageDialog(Source.this, "Mirror closed: " + reason); }
+            });
+        } catch (Exception ex) { JOptionPane.showMessageDialog(this, "Error: " + ex.getMessage()); return; }
+        enterReadOnly("Mirror of " + target);
+    }
+    private void enterReadOnly(String title) {
+        readOnly = true; currentMode = Mode.PAN; undoManager = new UndoManager(); setTitle(title);
+        for (Component c : toolPnl.getComponents()) if (c != panBtn) c.setEnabled(false);
+        for (Component c : editPnl.getComponents()) c.setEnabled(false);
+        for (JMenuItem item : documentItems) item.setEnabled(false);
+        jMenu2.setEnabled(false); toolsMenu.setEnabled(false);
+    }
+    /** Browses a paged drawing read-only; pages are decoded as they come into view (see PagedGraph). */
+    void openPaged(File f) {
+        try { paged = PagedGraph.open(f); }
+        catch (Exception ex) { JOptionPane.showMessageDialog(this, "Error: " + ex.getMessage()); return; }
+        paged.setOnLoaded(() -> { canvas.invalidateStatic(); canvas.repaint(); });
+        canvas.objects = new ArrayList<>(); fireReset(canvas.objects); refreshLayers();
+        enterReadOnly(f.getName() + " (" + paged.objectCount + " objects, read-only)");
+        // Fit the drawing, within the zoom range the canvas allows
+        Rectangle2D b = paged.bounds; int w = Math.max(1, canvas.getWidth()), h = Math.max(1, canvas.getHeight());
+        double fit = b.isEmpty() ? 1 : Math.min(w / b.getWidth(), h / b.getHeight()) * 0.95;
+        canvas.scale = Math.max(0.1, Math.min(fit, 1.0)); zoomSlider.setValue((int) (canvas.scale * 100));
+        canvas.translateX = w / 2.0 - b.getCenterX() * canvas.scale; canvas.translateY = h / 2.0 - b.getCenterY() * canvas.scale;
+        canvas.invalidateStatic(); canvas.repaint();
+    }
+    private void exportPaged() {
+        FileDialog fd = new FileDialog(this, "Export Paged Drawing", FileDialog.SAVE); fd.setFile("Untitled" + PagedGraph.EXTENSION); fd.setVisible(true);
+        if (fd.getFile() == null) return;
+        File f = new File(fd.getDirectory(), fd.getFile());
+        if (!f.getName().toLowerCase().endsWith(PagedGraph.EXTENSION)) f = new File(f.getParent(), f.getName() + PagedGraph.EXTENSION);
+        File target = f; SceneModel.Snapshot snap = sceneModel.snapshot();
+        new SwingWorker<Void, Void>() {
+            @Override protected Void doInBackground() throws Exception { PagedGraph.write(target, snap.objects); return null; }
+            @Override protected void done() { try { get(); } catch (Exception ex) { JOptionPane.showMessageDialog(Source.this, "Error: " + (ex.getCause() != null ? ex.getCause().getMessage() : ex.getMessage())); } }
+        }.execute();
+    }
+
+    void fireAdded(int index, GraphObject o) { for (SceneListener l : sceneListeners) l.added(index, o); }
+    void fireRemoved(java.util.Collection<? extends GraphObject> objs) { for (SceneListener l : sceneListeners) l.removed(objs); }
+    void fireMoved(java.util.Collection<? extends GraphObject> objs, double dx, double dy) { for (SceneListener l : sceneListeners) l.moved(objs, dx, dy); }
+    void fireRestyled(GraphObject o) { for (SceneListener l : sceneListeners) l.restyled(o); }
+    void fireChanged(GraphObject o) { for (SceneListener l : sceneListeners) l.changed(o); }
+    void fireReordered(int from, java.util.List<GraphObject> now) { for (SceneListener l : sceneListeners) l.reordered(from, now); }
+    void fireTransformed(java.util.Collection<? extends GraphObject> objs, AffineTransform at) { for (SceneListener l : sceneListeners) l.transformed(objs, at); }
+    void fireReshaped(java.util.Collection<? extends GraphObject> objs) { if (objs.isEmpty()) return; for (SceneListener l : sceneListeners) l.reshaped(objs); }
+    void fireReset(java.util.List<GraphObject> all) { for (SceneListener l : sceneListeners) l.reset(all); }
+
+    /** Flat x1, y1, x2, y2 buffer of every line and polygon edge, with group transforms applied. */
+    static class SegmentBuffer {
+        double[] xy = new double[256]; int count = 0;
+        void collect(java.util.List<GraphObject> objs, AffineTransform at) {
+            double[] c = new double[4];
+            for (GraphObject o : objs) {
+                if (o instanceof GLine) { Line2D.Double l = ((GLine) o).line; c[0]=l.x1; c[1]=l.y1; c[2]=l.x2; c[3]=l.y2; add(at, c); }
+                else if (o instanceof GPolygon) {
+                    ArrayList<Point2D.Double> pts = ((GPolygon) o).pts;
+                    for (int i = 0; i < pts.size(); i++) { Point2D.Double a = pts.get(i), b = pts.get((i + 1) % pts.size()); c[0]=a.x; c[1]=a.y; c[2]=b.x; c[3]=b.y; add(at, c); }
+                } else if (o instanceof GGroup) { AffineTransform t = new AffineTransform(at); t.concatenate(((GGroup) o).transform); collect(((GGroup) o).children, t); }
+                else if (o instanceof GInstance) { AffineTransform t = new AffineTransform(at); t.concatenate(((GInstance) o).transform); collect(((GInstance) o).def.geometry, t); }
+            }
+        }
+        private void add(AffineTransform at, double[] c) {
+            if (c[0] == c[2] && c[1] == c[3]) return;
+            if (count * 4 + 4 > xy.length) xy = java.util.Arrays.copyOf(xy, xy.length * 2);
+            at.transform(c, 0, xy, count * 4, 2); count++;
+        }
+    }
+
     private File showNativeLoadDialog() { FileDialog fd = new FileDialog(this, "Load", FileDialog.LOAD); fd.setFile("*.graph"); fd.setVisible(true); return (fd.getFile() == null) ? null : new File(fd.getDirectory(), fd.getFile()); }
     private File showNativeSaveDialog() { FileDialog fd = new FileDialog(this, "Save", FileDialog.SAVE); fd.setFile("Untitled.graph"); fd.setVisible(true); return (fd.getFile() == null) ? null : new File(fd.getDirectory(), fd.getFile()); }
 
     private void setupContextMenu() {
         contextMenu = new JPopupMenu();
         JMenuItem ren = new JMenuItem("Rename"); ren.addActionListener(e->renameSelected());
-        JMenuItem del = new JMenuItem("Delete"); del.addActionListener(e->deleteSelected());
+        JMenuItem del = new JMenuItem("Delete"); del.addActionListener(e->runAction("delete"));
         contextMenu.add(ren); contextMenu.addSeparator(); contextMenu.add(del);
     }
     private void setupMenus() {
@@ -330,31 +832,164 @@ public class Source extends JFrame {
         JMenuItem export = new JMenuItem("Export PNG"); // <--- NEW BUTTON
         export.addActionListener(e -> exportImage());   // <--- NEW ACTION
 
+        JMenuItem importCloud = new JMenuItem("Import Point Cloud...");
+        importCloud.addActionListener(e -> importPointCloud());
+
+        publishItem = new JMenuItem("Publish Mirror...");
+        publishItem.addActionListener(e -> togglePublishing());
+
+        JMenuItem openPagedItem = new JMenuItem("Open Large Drawing...");
+        openPagedItem.addActionListener(e -> {
+            FileDialog fd = new FileDialog(this, "Open Large Drawing", FileDialog.LOAD); fd.setFile("*" + PagedGraph.EXTENSION); fd.setVisible(true);
+            if (fd.getFile() != null) openPaged(new File(fd.getDirectory(), fd.getFile()));
+        });
+
+        JMenuItem exportPagedItem = new JMenuItem("Export Paged Drawing...");
+        exportPagedItem.addActionListener(e -> exportPaged());
+
+        JMenuItem follow = new JMenuItem("Follow Mirror...");
+        follow.addActionListener(e -> {
+            String target = JOptionPane.showInputDialog(this, "Publisher (host:port):", "localhost:" + SceneMirror.DEFAULT_PORT);
+            if (target != null) followMirror(target.trim());
+        });
+
         jMenu1.add(save);
         jMenu1.add(load);
         jMenu1.addSeparator();
+        jMenu1.add(importCloud);
         jMenu1.add(export); // Add to menu
+        jMenu1.addSeparator();
+        jMenu1.add(openPagedItem);
+        jMenu1.add(exportPagedItem);
+        jMenu1.addSeparator();
+        jMenu1.add(publishItem);
+        jMenu1.add(follow);
+        Collections.addAll(documentItems, load, importCloud, publishItem, follow, openPagedItem);
 
         // --- EDIT MENU ---
-        JMenuItem undo = new JMenuItem("Undo");
-        undo.addActionListener(e -> {
-            ArrayList<GraphObject> s = undoManager.undo(canvas.objects);
-            if(s != null) { canvas.objects = s; canvas.repaint(); refreshLayers(); }
-        });
+        JMenuItem undo = actionItem("Undo", "undo");
+        JMenuItem redo = actionItem("Redo", "redo");
+
+        int menuKey = Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx();
+        JMenuItem group = actionItem("Group", "group");
+        group.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_G, menuKey));
 
-        JMenuItem redo = new JMenuItem("Redo");
-        redo.addActionListener(e -> {
-            ArrayList<GraphObject> s = undoManager.redo(canvas.objects);
-            if(s != null) { canvas.objects = s; canvas.repaint(); refreshLayers(); }
+        JMenuItem ungroup = actionItem("Ungroup", "ungroup");
+        ungroup.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_G, menuKey | InputEvent.SHIFT_DOWN_MASK));
+
+        JMenuItem duplicate = actionItem("Duplicate", "duplicate");
+        duplicate.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_D, menuKey));
+
+        JMenuItem createSymbol = new JMenuItem("Create Symbol...");
+        createSymbol.addActionListener(e -> createSymbol());
+        editSymbolItem = actionItem("Edit Symbol", "symbol-edit");
+
+        JMenuItem rotate = new JMenuItem("Rotate...");
+        rotate.addActionListener(e -> {
+            String in = JOptionPane.showInputDialog(this, "Degrees (clockwise):", "90");
+            try { double deg = Double.parseDouble(in.trim()); transformSelection(b -> AffineTransform.getRotateInstance(Math.toRadians(deg), b.getCenterX(), b.getCenterY())); } catch(Exception ex){}
+        });
+        JMenuItem scale = new JMenuItem("Scale...");
+        scale.addActionListener(e -> {
+            String in = JOptionPane.showInputDialog(this, "Scale factor:", "2");
+            try { double f = Double.parseDouble(in.trim()); if(f != 0) transformSelection(b -> about(b, f, f)); } catch(Exception ex){}
+        });
+        JMenuItem flipH = actionItem("Flip Horizontal", "flip-h");
+        JMenuItem flipV = actionItem("Flip Vertical", "flip-v");
+
+        JMenu align = new JMenu("Align");
+        for (BulkTransform.Align a : BulkTransform.Align.values()) align.add(actionItem(a.name().charAt(0) + a.name().substring(1).toLowerCase(), "align-" + a.name().toLowerCase()));
+        JMenu arrange = new JMenu("Arrange");
+        JMenuItem front = actionItem("Bring to Front", "z-front"); front.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_CLOSE_BRACKET, menuKey | InputEvent.SHIFT_DOWN_MASK));
+        JMenuItem forward = actionItem("Bring Forward", "z-forward"); forward.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_CLOSE_BRACKET, menuKey));
+        JMenuItem backward = actionItem("Send Backward", "z-backward"); backward.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_OPEN_BRACKET, menuKey));
+        JMenuItem back = actionItem("Send to Back", "z-back"); back.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_OPEN_BRACKET, menuKey | InputEvent.SHIFT_DOWN_MASK));
+        JMenuItem steps = new JMenuItem("Move by...");
+        steps.addActionListener(e -> {
+            String in = JOptionPane.showInputDialog(this, "Steps (positive moves forward):", "1");
+            try { int n = Integer.parseInt(in.trim()); if (n != 0) reorderSelection(n > 0 ? ZOrder.Move.FORWARD : ZOrder.Move.BACKWARD, Math.abs(n)); } catch(Exception ex){}
         });
+        arrange.add(front); arrange.add(forward); arrange.add(backward); arrange.add(back); arrange.addSeparator(); arrange.add(steps);
+        JMenu distribute = new JMenu("Distribute");
+        distribute.add(actionItem("Horizontally", "distribute-h")); distribute.add(actionItem("Vertically", "distribute-v"));
 
         jMenu2.add(undo);
         jMenu2.add(redo);
+        jMenu2.addSeparator();
+        jMenu2.add(group);
+        jMenu2.add(ungroup);
+        jMenu2.add(duplicate);
+        jMenu2.addSeparator();
+        jMenu2.add(createSymbol);
+        jMenu2.add(editSymbolItem);
+        jMenu2.addSeparator();
+        jMenu2.add(rotate);
+        jMenu2.add(scale);
+        jMenu2.add(flipH);
+        jMenu2.add(flipV);
+        jMenu2.add(align);
+        jMenu2.add(distribute);
+        jMenu2.add(arrange);
+
+        // --- TOOLS MENU ---
+        JMenuItem intersections = new JMenuItem("Find Intersections");
+        intersections.addActionListener(e -> findIntersections());
+
+        JMenu network = new JMenu("Analyse Network");
+        JMenuItem components = new JMenuItem("Connected Components"); components.addActionListener(e -> analyseNetwork(Analysis.COMPONENTS));
+        JMenuItem shortestPath = new JMenuItem("Shortest Path Between Selected Points"); shortestPath.addActionListener(e -> analyseNetwork(Analysis.SHORTEST_PATH));
+        JMenuItem degrees = new JMenuItem("Degree Statistics"); degrees.addActionListener(e -> analyseNetwork(Analysis.DEGREES));
+        network.add(components); network.add(shortestPath); network.add(degrees);
+
+        recordItem = new JMenuItem("Record Session...");
+        recordItem.addActionListener(e -> toggleRecording());
+
+        toolsMenu = new JMenu("Tools");
+        toolsMenu.add(intersections);
+        toolsMenu.add(network);
+        toolsMenu.addSeparator();
+        toolsMenu.add(recordItem);
+        jMenuBar1.add(toolsMenu);
+    }
+    private void registerActions() {
+        actions.put("undo", () -> { ArrayList<GraphObject> s = undoManager.undo(canvas.objects); if(s != null) { Links.relink(s); canvas.objects = s; fireReset(s); leaveSymbolEdit(); canvas.repaint(); refreshLayers(); } });
+        actions.put("redo", () -> { ArrayList<GraphObject> s = undoManager.redo(canvas.objects); if(s != null) { Links.relink(s); canvas.objects = s; fireReset(s); leaveSymbolEdit(); canvas.repaint(); refreshLayers(); } });
+        actions.put("delete", this::deleteSelected);
+        actions.put("group", this::groupSelected);
+        actions.put("ungroup", this::ungroupSelected);
+        actions.put("duplicate", this::duplicateSelected);
+        actions.put("symbol-edit", this::toggleSymbolEdit);
+        actions.put("flip-h", () -> transformSelection(b -> about(b, -1, 1)));
+        actions.put("flip-v", () -> transformSelection(b -> about(b, 1, -1)));
+        for (BulkTransform.Align a : BulkTransform.Align.values()) actions.put("align-" + a.name().toLowerCase(), () -> arrangeSelection(idx -> BulkTransform.align(canvas.objects, idx, a), 2));
+        actions.put("distribute-h", () -> arrangeSelection(idx -> BulkTransform.distribute(canvas.objects, idx, true), 3));
+        actions.put("z-front", () -> reorderSelection(ZOrder.Move.FRONT, 0));
+        actions.put("z-back", () -> reorderSelection(ZOrder.Move.BACK, 0));
+        actions.put("z-forward", () -> reorderSelection(ZOrder.Move.FORWARD, 1));
+        actions.put("z-backward", () -> reorderSelection(ZOrder.Move.BACKWARD, 1));
+        actions.put("distribute-v", () -> arrangeSelection(idx -> BulkTransform.distribute(canvas.objects, idx, false), 3));
+    }
+    private JMenuItem actionItem(String label, String action) { JMenuItem item = new JMenuItem(label); item.addActionListener(e -> runAction(action)); return item; }
+    /** Runs a named command (see actions), recording it first when a session is being recorded. */
+    void runAction(String name) {
+        Runnable r = actions.get(name);
+        if (r == null) throw new IllegalArgumentException("Unknown action: " + name);
+        if (recorder != null) recorder.action(name);
+        r.run();
+    }
+    private void toggleRecording() {
+        if (recorder != null) { recorder.close(); recorder = null; recordItem.setText("Record Session..."); return; }
+        FileDialog fd = new FileDialog(this, "Record Session", FileDialog.SAVE); fd.setFile("session" + SessionRecorder.EXTENSION); fd.setVisible(true);
+        if (fd.getFile() == null) return;
+        try {
+            recorder = new SessionRecorder(new File(fd.getDirectory(), fd.getFile()), this);
+            recordItem.setText("Stop Recording");
+        } catch (Exception ex) { JOptionPane.showMessageDialog(this, "Error: " + ex.getMessage()); }
     }
     private void setupKeyboardShortcuts() {
         KeyStroke delKey = KeyStroke.getKeyStroke(KeyEvent.VK_DELETE, 0);
         getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(delKey, "del");
-        getRootPane().getActionMap().put("del", new AbstractAction() { public void actionPerformed(ActionEvent e) { deleteSelected(); }});
+        getRootPane().getActionMap().put("del", new AbstractAction() { public void actionPerformed(ActionEvent e) { runAction("delete"); }});
     }
 
 
@@ -551,36 +1186,157 @@ public class Source extends JFrame {
     private void polygonBtnActionPerformed(ActionEvent evt) {}
 
 
+    /**
+     * Told about every edit to the top-level object list, on the EDT and after the edit is made.
+     * Indices refer to canvas.objects; reset means the whole list was replaced (load, undo, redo).
+     */
+    interface SceneListener {
+        default void added(int index, GraphObject o) {}
+        default void removed(java.util.Collection<? extends GraphObject> objs) {}
+        default void moved(java.util.Collection<? extends GraphObject> objs, double dx, double dy) {}
+        /** Colour, stroke width or name changed; geometry did not. */
+        default void restyled(GraphObject o) {}
+        /** Geometry changed in some way other than a move (resize, handle drag). */
+        default void changed(GraphObject o) {}
+        /** The objects at [from, from + now.size()) were rearranged among themselves and are now in this order. */
+        default void reordered(int from, java.util.List<GraphObject> now) {}
+        /** Each object's geometry was mapped through at (rotate, scale, mirror); none changed type. */
+        default void transformed(java.util.Collection<? extends GraphObject> objs, AffineTransform at) {}
+        /**
+         * Lines or polygons were snapped onto the points they are attached to (see Links), after the
+         * event that moved those points, or let go of a point that was removed or grouped away. During
+         * that moved() or transformed() call they still lie where they were. A listener that applies
+         * the same edits to linked copies can rebuild these itself.
+         */
+        default void reshaped(java.util.Collection<? extends GraphObject> objs) {}
+        default void reset(java.util.List<GraphObject> all) {}
+    }
+
+    /** One step on the undo stack; both directions return the list to show, which may be the one passed in. */
+    interface Edit {
+        ArrayList<GraphObject> undo(ArrayList<GraphObject> objects);
+        ArrayList<GraphObject> redo(ArrayList<GraphObject> objects);
+    }
+    /** A full copy of the scene; undo and redo swap it with the live list. */
+    static class Snapshot implements Edit {
+        ArrayList<GraphObject> saved;
+        Snapshot(ArrayList<GraphObject> c) { saved = copyOf(c); }
+        static ArrayList<GraphObject> copyOf(ArrayList<GraphObject> c) { return Links.copyScene(c); }
+        public ArrayList<GraphObject> undo(ArrayList<GraphObject> c) { ArrayList<GraphObject> s = saved; saved = copyOf(c); return s; }
+        public ArrayList<GraphObject> redo(ArrayList<GraphObject> c) { return undo(c); }
+    }
     class UndoManager {
-        Stack<ArrayList<GraphObject>> u = new Stack<>(), r = new Stack<>();
-        public void saveState(ArrayList<GraphObject> c) { ArrayList<GraphObject> s = new ArrayList<>(); for(GraphObject o : c) s.add(o.copy()); u.push(s); r.clear(); }
-        public ArrayList<GraphObject> undo(ArrayList<GraphObject> c) { if(u.isEmpty()) return null; ArrayList<GraphObject> s = new ArrayList<>(); for(GraphObject o : c) s.add(o.copy()); r.push(s); return u.pop(); }
-        public ArrayList<GraphObject> redo(ArrayList<GraphObject> c) { if(r.isEmpty()) return null; ArrayList<GraphObject> s = new ArrayList<>(); for(GraphObject o : c) s.add(o.copy()); u.push(s); return r.pop(); }
+        Stack<Edit> u = new Stack<>(), r = new Stack<>();
+        public void saveState(ArrayList<GraphObject> c) { record(new Snapshot(c)); }
+        /** Pushes an edit that has already been applied. */
+        public void record(Edit e) { u.push(e); r.clear(); }
+        public ArrayList<GraphObject> undo(ArrayList<GraphObject> c) { if(u.isEmpty()) return null; Edit e = u.pop(); r.push(e); return e.undo(c); }
+        public ArrayList<GraphObject> redo(ArrayList<GraphObject> c) { if(r.isEmpty()) return null; Edit e = r.pop(); u.push(e); return e.redo(c); }
     }
 
-    class GraphCanvas extends JComponent {
+    /**
+     * Paints in two layers. Unselected objects and the grid are cached in a VolatileImage that is
+     * only redrawn when the view, the selection or an unselected object changes; selected objects,
+     * objects attached to selected points, handles, the rubber-band object and the marquee are
+     * drawn over it every frame. While editing,
+     * the selection therefore shows above the rest of the scene regardless of its z-order.
+     */
+    class GraphCanvas extends JComponent implements SceneListener {
         double translateX = 0, translateY = 0, scale = 1.0;
         ArrayList<GraphObject> objects = new ArrayList<>();
         GraphObject tempObject = null;
         Rectangle selectionRect = null;
-        public GraphCanvas() { setBackground(Color.WHITE); }
+        VolatileImage staticLayer; long sceneVersion = 0;
+        // What the static layer currently shows
+        long layerVersion = -1; ArrayList<GraphObject> layerObjects; int layerSize; BitSet layerSelection; double layerTx, layerTy, layerScale;
+        // The view the minimap's viewport rectangle was last repainted for
+        double miniTx = Double.NaN, miniTy, miniScale; int miniW, miniH;
+        public GraphCanvas() { setBackground(Color.WHITE); setFont(LabelCache.FONT); }
         public AffineTransform getTransform() { AffineTransform at = new AffineTransform(); at.translate(translateX, translateY); at.scale(scale, scale); return at; }
+        /** Forces the static layer to be redrawn, for edits made without scene events. */
+        void invalidateStatic() { sceneVersion++; }
         @Override protected void paintComponent(Graphics g) {
             super.paintComponent(g); Graphics2D g2d = (Graphics2D) g;
-            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
             AffineTransform sys = g2d.getTransform();
-            g2d.setTransform(new AffineTransform()); g2d.setColor(Color.WHITE); g2d.fillRect(0, 0, 2000, 2000); g2d.setTransform(sys);
+            paintStaticLayer(g2d);
+            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            Rectangle device = sys.createTransformedShape(new Rectangle(0, 0, getWidth(), getHeight())).getBounds();
+            g2d.transform(getTransform());
+            drawObjects(g2d, device, true);
+            if(tempObject != null) tempObject.draw(g2d);
+            if(selectionRect != null) { g2d.setTransform(sys); g2d.setColor(new Color(0, 120, 255, 50)); g2d.fill(selectionRect); g2d.setColor(new Color(0, 120, 255)); g2d.draw(selectionRect); }
+            g2d.setTransform(sys);
+            // Only when the view moved, so drags and overlay repaints don't also redraw the minimap
+            if(minimap != null && (miniTx != translateX || miniTy != translateY || miniScale != scale || miniW != getWidth() || miniH != getHeight())) {
+                miniTx = translateX; miniTy = translateY; miniScale = scale; miniW = getWidth(); miniH = getHeight(); minimap.repaint();
+            }
+        }
+        private void paintStaticLayer(Graphics2D g2d) {
+            BitSet selection = selectedIndices();
+            boolean stale = layerVersion != sceneVersion || layerObjects != objects || layerSize != objects.size() || !selection.equals(layerSelection)
+                    || layerTx != translateX || layerTy != translateY || layerScale != scale;
+            for (int attempt = 0; attempt < 3; attempt++) {
+                if (staticLayer == null || staticLayer.getWidth() != getWidth() || staticLayer.getHeight() != getHeight()) {
+                    staticLayer = getWidth() > 0 && getHeight() > 0 ? createVolatileImage(getWidth(), getHeight()) : null; stale = true;
+                }
+                if (staticLayer == null) { Graphics2D sg = (Graphics2D) g2d.create(); renderStatic(sg); sg.dispose(); return; } // not on screen yet, or printing
+                int state = staticLayer.validate(getGraphicsConfiguration());
+                if (state == VolatileImage.IMAGE_INCOMPATIBLE) { staticLayer = null; continue; }
+                if (state == VolatileImage.IMAGE_RESTORED) stale = true;
+                if (stale) {
+                    Graphics2D lg = staticLayer.createGraphics(); renderStatic(lg); lg.dispose();
+                    layerVersion = sceneVersion; layerObjects = objects; layerSize = objects.size(); layerSelection = selection; layerTx = translateX; layerTy = translateY; layerScale = scale;
+                }
+                g2d.drawImage(staticLayer, 0, 0, null);
+                if (!staticLayer.contentsLost()) return;
+                stale = true;
+            }
+        }
+        private void renderStatic(Graphics2D g2d) {
+            g2d.clipRect(0, 0, getWidth(), getHeight());
+            g2d.setColor(Color.WHITE); g2d.fillRect(0, 0, getWidth(), getHeight());
+            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            Rectangle device = g2d.getTransform().createTransformedShape(new Rectangle(0, 0, getWidth(), getHeight())).getBounds();
             g2d.transform(getTransform());
             // Grid
             g2d.setColor(new Color(235, 235, 235)); g2d.setStroke(new BasicStroke(1));
             for (int x = -10000; x <= 10000; x += 50) g2d.drawLine(x, -10000, x, 10000);
             for (int y = -10000; y <= 10000; y += 50) g2d.drawLine(-10000, y, 10000, y);
             g2d.setColor(new Color(200, 200, 200)); g2d.drawLine(-10000, 0, 10000, 0); g2d.drawLine(0, -10000, 0, 10000);
-            for(GraphObject o : objects) o.draw(g2d);
-            if(tempObject != null) tempObject.draw(g2d);
-            if(selectionRect != null) { g2d.setTransform(sys); g2d.setColor(new Color(0, 120, 255, 50)); g2d.fill(selectionRect); g2d.setColor(new Color(0, 120, 255)); g2d.draw(selectionRect); }
-            g2d.setTransform(sys);
+            drawObjects(g2d, device, false);
+            if (paged != null) paged.draw(g2d, g2d.getClipBounds());
         }
+        // Compared exactly, not hashed, so no change of selection can leave a stale layer on screen
+        private BitSet selectedIndices() { BitSet s = new BitSet(); for (int i = 0, n = objects.size(); i < n; i++) if (objects.get(i).isSelected) s.set(i); return s; }
+        // Consecutive points are blitted from the marker atlas instead of being stroked one by one
+        void drawObjects(Graphics2D g2d, Rectangle device, boolean selected) {
+            boolean sprites = MarkerAtlas.supports(g2d.getTransform());
+            Rectangle view = g2d.getClipBounds();
+            for (int i = 0, n = objects.size(); i < n; ) {
+                GraphObject o = objects.get(i);
+                if (inOverlay(o) != selected) { i++; continue; }
+                if (!sprites || !(o instanceof GPoint)) { i++; if (view == null || isVisible(o, view)) o.draw(g2d); continue; }
+                int j = i; while (j < n && objects.get(j) instanceof GPoint && objects.get(j).isSelected == selected) j++;
+                MarkerAtlas.drawRun(g2d, objects, i, j, device); i = j;
+            }
+        }
+        boolean isVisible(GraphObject o, Rectangle view) {
+            Rectangle2D b = o.getBounds(); double pad = o.strokeWidth + 8;
+            return b.getMaxX() + pad >= view.x && b.getMinX() - pad <= view.x + view.width && b.getMaxY() + pad >= view.y && b.getMinY() - pad <= view.y + view.height;
+        }
+        // Objects attached to a selected point move with it, so they are drawn with the selection
+        boolean inOverlay(GraphObject o) { return o.isSelected || Links.followsSelection(o); }
+        // Edits confined to the overlay leave the static layer alone; anything else invalidates it
+        private void touched(java.util.Collection<? extends GraphObject> objs) { for (GraphObject o : objs) if (!inOverlay(o)) { invalidateStatic(); return; } }
+        public void added(int index, GraphObject o) { if (!inOverlay(o)) invalidateStatic(); }
+        public void removed(java.util.Collection<? extends GraphObject> objs) { touched(objs); }
+        public void moved(java.util.Collection<? extends GraphObject> objs, double dx, double dy) { touched(objs); }
+        public void restyled(GraphObject o) { if (!inOverlay(o)) invalidateStatic(); }
+        public void changed(GraphObject o) { if (!inOverlay(o)) invalidateStatic(); }
+        public void transformed(java.util.Collection<? extends GraphObject> objs, AffineTransform at) { touched(objs); }
+        public void reshaped(java.util.Collection<? extends GraphObject> objs) { touched(objs); }
+        public void reordered(int from, java.util.List<GraphObject> now) { invalidateStatic(); }
+        public void reset(java.util.List<GraphObject> all) { invalidateStatic(); }
     }
 
     enum Handle { TL, T, TR, R, BR, B, BL, L, P1, P2, RADIUS, VERTEX_0, VERTEX_1, VERTEX_2, VERTEX_3, VERTEX_4, VERTEX_5, VERTEX_6, VERTEX_7, VERTEX_8, VERTEX_9, NONE }
@@ -591,33 +1347,64 @@ public class Source extends JFrame {
         public GraphObject(Color c, float s, String n) { this.color=c; this.strokeWidth=s; this.name=n; }
         abstract void drawShape(Graphics2D g2d); abstract boolean contains(Point2D p); abstract void move(double dx, double dy); abstract GraphObject copy(); abstract Shape getShape(); abstract void rebuildShape();
         abstract Handle getHandleAt(Point2D p); abstract void resize(Handle h, double dx, double dy); abstract void drawHandles(Graphics2D g2d);
-        void draw(Graphics2D g2d) {
-            g2d.setColor(color); g2d.setStroke(new BasicStroke(strokeWidth, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND)); drawShape(g2d);
-            if(isSelected) { g2d.setColor(new Color(50, 150, 255)); g2d.setStroke(new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL, 0, new float[]{5}, 0)); drawShape(g2d); drawHandles(g2d); }
-        }
+        /** Maps this object's geometry through at; returns the object to keep, a replacement if this type can't represent the result. */
+        abstract GraphObject transformed(AffineTransform at);
+        Rectangle2D getBounds() { return getShape().getBounds2D(); }
+        void draw(Graphics2D g2d) { drawPlain(g2d); if(isSelected) drawSelection(g2d); }
+        /** The object as it looks when not selected. */
+        void drawPlain(Graphics2D g2d) { g2d.setColor(color); g2d.setStroke(new BasicStroke(strokeWidth, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND)); drawShape(g2d); }
+        void drawSelection(Graphics2D g2d) { g2d.setColor(new Color(50, 150, 255)); g2d.setStroke(new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL, 0, new float[]{5}, 0)); drawShape(g2d); drawHandles(g2d); }
         void drawHandle(Graphics2D g2d, double x, double y) { double s = 6.0; g2d.setColor(Color.WHITE); g2d.fill(new Rectangle2D.Double(x-s/2, y-s/2, s, s)); g2d.setColor(Color.BLACK); g2d.setStroke(new BasicStroke(1)); g2d.draw(new Rectangle2D.Double(x-s/2, y-s/2, s, s)); }
+        /** Sets colour and stroke width (the colour picker, the stroke dialog, a mirror restyle). */
+        void restyle(Color c, float w) { color = c; strokeWidth = w; }
+        // Corner handles of objects that are resized by scaling their own transform (groups, symbol instances)
+        void drawCorners(Graphics2D g, Rectangle2D b) { drawHandle(g, b.getMinX(), b.getMinY()); drawHandle(g, b.getMaxX(), b.getMinY()); drawHandle(g, b.getMaxX(), b.getMaxY()); drawHandle(g, b.getMinX(), b.getMaxY()); }
+        static Handle cornerAt(Rectangle2D b, Point2D p) {
+            if(p.distance(b.getMinX(), b.getMinY())<6) return Handle.TL; if(p.distance(b.getMaxX(), b.getMinY())<6) return Handle.TR;
+            if(p.distance(b.getMaxX(), b.getMaxY())<6) return Handle.BR; if(p.distance(b.getMinX(), b.getMaxY())<6) return Handle.BL; return Handle.NONE;
+        }
+        /** Scaling about the corner opposite h, or null when the bounds or the result would be degenerate. */
+        static AffineTransform cornerScale(Rectangle2D b, Handle h, double dx, double dy) {
+            double w = b.getWidth(), ht = b.getHeight(); if (w < 1e-6 || ht < 1e-6) return null;
+            boolean right = h==Handle.TR || h==Handle.BR, bottom = h==Handle.BL || h==Handle.BR;
+            double ax = right ? b.getMinX() : b.getMaxX(), ay = bottom ? b.getMinY() : b.getMaxY();
+            double sx = (w + (right ? dx : -dx)) / w, sy = (ht + (bottom ? dy : -dy)) / ht; if (sx < 0.01 || sy < 0.01) return null;
+            AffineTransform s = AffineTransform.getTranslateInstance(ax, ay); s.scale(sx, sy); s.translate(-ax, -ay); return s;
+        }
     }
     static class GRectangle extends GraphObject {
         transient Rectangle2D.Double rect; double x, y, w, h;
         public GRectangle(double x, double y, double w, double h, Color c, float s) { super(c, s, "Rectangle"); this.x=x; this.y=y; this.w=w; this.h=h; rebuildShape(); }
-        void rebuildShape() { rect = new Rectangle2D.Double(x, y, w, h); }
+        void rebuildShape() { if(rect==null) rect = new Rectangle2D.Double(x, y, w, h); else rect.setRect(x, y, w, h); }
+        void setFrame(double x, double y, double w, double h) { this.x=x; this.y=y; this.w=w; this.h=h; rebuildShape(); }
         void drawShape(Graphics2D g2d) { g2d.draw(rect); } boolean contains(Point2D p) { return rect.contains(p); }
         void move(double dx, double dy) { rect.x+=dx; rect.y+=dy; x=rect.x; y=rect.y; } Shape getShape() { return rect; }
         GraphObject copy() { GRectangle o = new GRectangle(x, y, w, h, color, strokeWidth); o.isSelected=isSelected; o.name=name; return o; }
         void drawHandles(Graphics2D g) { drawHandle(g, x, y); drawHandle(g, x+w, y); drawHandle(g, x+w, y+h); drawHandle(g, x, y+h); }
         Handle getHandleAt(Point2D p) { if(p.distance(x,y)<4) return Handle.TL; if(p.distance(x+w,y+h)<4) return Handle.BR; return Handle.NONE; }
         void resize(Handle handle, double dx, double dy) { if(handle==Handle.BR){ w+=dx; h+=dy; } else if(handle==Handle.TL){ x+=dx; y+=dy; w-=dx; h-=dy; } rebuildShape(); }
+        GraphObject transformed(AffineTransform at) {
+            double[] c = { x, y, x+w, y, x+w, y+h, x, y+h }; at.transform(c, 0, c, 0, 4);
+            if ((at.getType() & (AffineTransform.TYPE_MASK_ROTATION | AffineTransform.TYPE_GENERAL_TRANSFORM)) != 0) {
+                Path2D.Double p = new Path2D.Double(); p.moveTo(c[0], c[1]); for(int i=2; i<8; i+=2) p.lineTo(c[i], c[i+1]); p.closePath();
+                GPolygon o = new GPolygon(p, color, strokeWidth); o.isSelected=isSelected; o.name=name; return o;
+            }
+            x=Math.min(c[0], c[4]); y=Math.min(c[1], c[5]); w=Math.abs(c[4]-c[0]); h=Math.abs(c[5]-c[1]); rebuildShape(); return this;
+        }
     }
     static class GLine extends GraphObject {
         transient Line2D.Double line; double x1, y1, x2, y2;
+        GPoint start, end; // points the ends are attached to, or null (see Links)
         public GLine(Point2D s, Point2D e, Color c, float sw) { super(c, sw, "Line"); x1=s.getX(); y1=s.getY(); x2=e.getX(); y2=e.getY(); rebuildShape(); }
-        void rebuildShape() { line = new Line2D.Double(x1, y1, x2, y2); }
+        void rebuildShape() { if(line==null) line = new Line2D.Double(x1, y1, x2, y2); else line.setLine(x1, y1, x2, y2); }
+        void setEnds(Point2D s, Point2D e) { x1=s.getX(); y1=s.getY(); x2=e.getX(); y2=e.getY(); rebuildShape(); }
         void drawShape(Graphics2D g2d) { g2d.draw(line); } boolean contains(Point2D p) { return line.ptSegDist(p)<5; }
         void move(double dx, double dy) { line.x1+=dx; line.y1+=dy; line.x2+=dx; line.y2+=dy; x1=line.x1; y1=line.y1; x2=line.x2; y2=line.y2; }
-        Shape getShape() { return line; } GraphObject copy() { GLine o = new GLine(new Point2D.Double(x1,y1), new Point2D.Double(x2,y2), color, strokeWidth); o.isSelected=isSelected; o.name=name; return o; }
+        Shape getShape() { return line; } GraphObject copy() { GLine o = new GLine(new Point2D.Double(x1,y1), new Point2D.Double(x2,y2), color, strokeWidth); o.start=start; o.end=end; o.isSelected=isSelected; o.name=name; return o; }
         void drawHandles(Graphics2D g) { drawHandle(g, x1, y1); drawHandle(g, x2, y2); }
         Handle getHandleAt(Point2D p) { if(p.distance(x1, y1)<5) return Handle.P1; if(p.distance(x2, y2)<5) return Handle.P2; return Handle.NONE; }
         void resize(Handle h, double dx, double dy) { if(h==Handle.P1){x1+=dx; y1+=dy;} if(h==Handle.P2){x2+=dx; y2+=dy;} rebuildShape(); }
+        GraphObject transformed(AffineTransform at) { double[] c = { line.x1, line.y1, line.x2, line.y2 }; at.transform(c, 0, c, 0, 2); x1=c[0]; y1=c[1]; x2=c[2]; y2=c[3]; rebuildShape(); return this; }
     }
     static class GCircle extends GraphObject {
         double x, y, r;
@@ -627,25 +1414,176 @@ public class Source extends JFrame {
         GraphObject copy() { GCircle o = new GCircle(x, y, r, color, strokeWidth); o.isSelected=isSelected; o.name=name; return o; }
         void drawHandles(Graphics2D g) { drawHandle(g, x+r, y); } Handle getHandleAt(Point2D p) { if(p.distance(x+r, y)<6) return Handle.RADIUS; return Handle.NONE; }
         void resize(Handle h, double dx, double dy) { if(h==Handle.RADIUS){ r+=dx; if(r<2)r=2; } }
+        GraphObject transformed(AffineTransform at) {
+            double a=at.getScaleX(), b=at.getShearX(), c=at.getShearY(), d=at.getScaleY(), s=a*a+c*c, t=b*b+d*d;
+            if (Math.abs(a*b+c*d) <= 1e-9*s && Math.abs(t-s) <= 1e-9*s) { Point2D p = at.transform(new Point2D.Double(x, y), null); x=p.getX(); y=p.getY(); r*=Math.sqrt(s); return this; }
+            // Stretched or sheared it is an ellipse, which a circle can't hold: a polygon within a quarter unit of it instead
+            int n = (int) Math.max(16, Math.min(128, Math.ceil(Math.PI / Math.acos(Math.max(-1, 1 - 0.25 / (r * Math.sqrt(Math.max(s, t))))))));
+            double[] e = new double[2*n]; for(int i=0; i<n; i++){ e[2*i]=x+r*Math.cos(2*Math.PI*i/n); e[2*i+1]=y+r*Math.sin(2*Math.PI*i/n); } at.transform(e, 0, e, 0, n);
+            Path2D.Double p = new Path2D.Double(); p.moveTo(e[0], e[1]); for(int i=2; i<2*n; i+=2) p.lineTo(e[i], e[i+1]); p.closePath();
+            GPolygon o = new GPolygon(p, color, strokeWidth); o.isSelected=isSelected; o.name=name; return o;
+        }
     }
     static class GPolygon extends GraphObject {
         transient Path2D.Double path; ArrayList<Double> xp=new ArrayList<>(), yp=new ArrayList<>(); transient ArrayList<Point2D.Double> pts;
+        GPoint[] anchors; // per vertex, null until one is attached (see Links)
         public GPolygon(Path2D.Double p, Color c, float s) { super(c, s, "Polygon"); this.path=p; sync(); }
         void sync() { xp.clear(); yp.clear(); PathIterator pi=path.getPathIterator(null); double[] c=new double[6]; while(!pi.isDone()){ if(pi.currentSegment(c)!=PathIterator.SEG_CLOSE){xp.add(c[0]); yp.add(c[1]);} pi.next(); } init(); }
         void init() { pts=new ArrayList<>(); for(int i=0; i<xp.size(); i++) pts.add(new Point2D.Double(xp.get(i), yp.get(i))); }
         void rebuildShape() { if(xp==null)return; init(); rebuildPath(); }
-        void rebuildPath() { path=new Path2D.Double(); if(pts.size()>0){ path.moveTo(pts.get(0).x, pts.get(0).y); for(int i=1; i<pts.size(); i++) path.lineTo(pts.get(i).x, pts.get(i).y); path.closePath(); } xp.clear(); yp.clear(); for(Point2D.Double p:pts){xp.add(p.x); yp.add(p.y);} }
+        // Reuses the existing path and coordinate lists so per-frame edits don't reallocate them
+        void rebuildPath() { if(path==null) path=new Path2D.Double(); else path.reset(); if(pts.size()>0){ path.moveTo(pts.get(0).x, pts.get(0).y); for(int i=1; i<pts.size(); i++) path.lineTo(pts.get(i).x, pts.get(i).y); path.closePath(); } syncCoords(); }
+        void syncCoords() { if(xp.size()!=pts.size()){ xp.clear(); yp.clear(); for(Point2D.Double p:pts){xp.add(p.x); yp.add(p.y);} } else for(int i=0; i<pts.size(); i++){ xp.set(i, pts.get(i).x); yp.set(i, pts.get(i).y); } }
         void drawShape(Graphics2D g2d) { if(path==null) rebuildShape(); g2d.draw(path); } boolean contains(Point2D p) { if(path==null) rebuildShape(); return path.contains(p); }
-        void move(double dx, double dy) { for(Point2D.Double p:pts){p.x+=dx; p.y+=dy;} rebuildPath(); } Shape getShape() { if(path==null)rebuildShape(); return path; }
-        GraphObject copy() { GPolygon o = new GPolygon((Path2D.Double)path.clone(), color, strokeWidth); o.isSelected=isSelected; o.name=name; return o; }
-        void drawHandles(Graphics2D g) { for(Point2D.Double p:pts) drawHandle(g, p.x, p.y); } Handle getHandleAt(Point2D p) { for(int i=0; i<pts.size(); i++) if(p.distance(pts.get(i))<6) return Handle.values()[Handle.VERTEX_0.ordinal()+i]; return Handle.NONE; }
+        void move(double dx, double dy) { for(Point2D.Double p:pts){p.x+=dx; p.y+=dy;} path.transform(AffineTransform.getTranslateInstance(dx, dy)); syncCoords(); } Shape getShape() { if(path==null)rebuildShape(); return path; }
+        GraphObject copy() { GPolygon o = new GPolygon((Path2D.Double)path.clone(), color, strokeWidth); if(anchors!=null) o.anchors=anchors.clone(); o.isSelected=isSelected; o.name=name; return o; }
+        void drawHandles(Graphics2D g) { for(Point2D.Double p:pts) drawHandle(g, p.x, p.y); } Handle getHandleAt(Point2D p) { for(int i=0; i<pts.size() && i<=Handle.VERTEX_9.ordinal()-Handle.VERTEX_0.ordinal(); i++) if(p.distance(pts.get(i))<6) return Handle.values()[Handle.VERTEX_0.ordinal()+i]; return Handle.NONE; }
         void resize(Handle h, double dx, double dy) { int i=h.ordinal()-Handle.VERTEX_0.ordinal(); if(i>=0 && i<pts.size()){ pts.get(i).x+=dx; pts.get(i).y+=dy; rebuildPath(); } }
+        GraphObject transformed(AffineTransform at) { for(Point2D.Double p:pts) at.transform(p, p); rebuildPath(); return this; }
     }
     static class GPoint extends GraphObject {
-        double x, y; public GPoint(double x, double y, String l) { super(Color.RED, 2, l); this.x=x;this.y=y; } void rebuildShape(){}
-        void drawShape(Graphics2D g2d) { AffineTransform t=g2d.getTransform(); g2d.translate(x,y); g2d.setColor(isSelected?Color.BLUE:Color.RED); g2d.drawLine(-4,-4,4,4); g2d.drawLine(-4,4,4,-4); g2d.setColor(Color.BLACK); g2d.drawString(name,6,-6); g2d.setTransform(t); }
+        double x, y; transient ArrayList<GraphObject> dependents; // lines and polygons attached here, rebuilt by Links.relink
+        private transient String measured; private transient float labelWidth; // name's width in LabelCache.FONT, remeasured when renamed
+        public GPoint(double x, double y, String l) { super(Color.RED, 2, l); this.x=x;this.y=y; } void rebuildShape(){}
+        void drawShape(Graphics2D g2d) { AffineTransform t=g2d.getTransform(); g2d.translate(x,y); g2d.setColor(isSelected?Color.BLUE:Color.RED); g2d.drawLine(-4,-4,4,4); g2d.drawLine(-4,4,4,-4); g2d.setColor(Color.BLACK); g2d.drawGlyphVector(LabelCache.glyphs(g2d, name),6,-6); g2d.setTransform(t); }
         boolean contains(Point2D p) { return p.distance(x,y)<8; } void move(double dx, double dy) { x+=dx; y+=dy; } Shape getShape() { return new Rectangle2D.Double(x-4, y-4, 8, 8); }
         GraphObject copy() { GPoint o = new GPoint(x, y, name); o.isSelected=isSelected; return o; } void drawHandles(Graphics2D g){} Handle getHandleAt(Point2D p){return Handle.NONE;} void resize(Handle h, double dx, double dy){}
+        GraphObject transformed(AffineTransform at) { Point2D c = at.transform(new Point2D.Double(x, y), null); x=c.getX(); y=c.getY(); return this; }
+        Rectangle2D getBounds() { if (measured != name) { labelWidth = LabelCache.width(name); measured = name; } return new Rectangle2D.Double(x-4, y-20, Math.max(8, 10 + labelWidth), 24); } // includes the label, drawn at (6, -6)
+    }
+
+    static class GPointCloud extends GraphObject {
+        private static final long serialVersionUID = 1L;
+        /** Largest raster rendered per frame, in device pixels per side. */
+        static final int MAX_RASTER = 4096;
+        transient PointCloud cloud; double offsetX, offsetY;
+        public GPointCloud(PointCloud pc, Color c) { super(c, 1, "Point Cloud (" + pc.count + " pts)"); cloud = pc; }
+        void rebuildShape() {}
+        void drawPlain(Graphics2D g2d) { drawShape(g2d); }
+        void drawSelection(Graphics2D g2d) { g2d.setColor(new Color(50, 150, 255)); g2d.setStroke(new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL, 0, new float[]{5}, 0)); g2d.draw(getShape()); }
+        // Rasterised at device resolution over the visible part of the cloud, then drawn as one image
+        void drawShape(Graphics2D g2d) {
+            AffineTransform dev = g2d.getTransform(); double s = Math.sqrt(Math.abs(dev.getDeterminant()));
+            if (s == 0 || cloud.count == 0) return;
+            Rectangle2D vis = getShape().getBounds2D(); double pad = 2 / s;
+            vis.setRect(vis.getX() - pad, vis.getY() - pad, vis.getWidth() + 2 * pad, vis.getHeight() + 2 * pad);
+            Shape clip = g2d.getClip(); if (clip != null) Rectangle2D.intersect(vis, clip.getBounds2D(), vis);
+            if (vis.getWidth() <= 0 || vis.getHeight() <= 0) return;
+            int x0 = (int) Math.floor(vis.getMinX() * s), y0 = (int) Math.floor(vis.getMinY() * s);
+            int w = Math.min(MAX_RASTER, (int) Math.ceil(vis.getMaxX() * s) - x0), h = Math.min(MAX_RASTER, (int) Math.ceil(vis.getMaxY() * s) - y0);
+            if (w <= 0 || h <= 0) return;
+            AffineTransform toPixels = AffineTransform.getTranslateInstance(-x0, -y0); toPixels.scale(s, s); toPixels.translate(offsetX, offsetY);
+            BufferedImage img = cloud.render(w, h, toPixels, color.getRGB());
+            g2d.scale(1 / s, 1 / s); g2d.drawImage(img, x0, y0, x0 + w, y0 + h, 0, 0, w, h, null); g2d.setTransform(dev);
+        }
+        boolean contains(Point2D p) { return cloud.anyWithin(p.getX() - offsetX, p.getY() - offsetY, 5); }
+        void move(double dx, double dy) { offsetX+=dx; offsetY+=dy; }
+        Shape getShape() { Rectangle2D b = cloud.bounds(); return new Rectangle2D.Double(b.getX() + offsetX, b.getY() + offsetY, b.getWidth(), b.getHeight()); }
+        GraphObject copy() { GPointCloud o = new GPointCloud(cloud, color); o.offsetX=offsetX; o.offsetY=offsetY; o.isSelected=isSelected; o.name=name; return o; }
+        void drawHandles(Graphics2D g){} Handle getHandleAt(Point2D p){return Handle.NONE;} void resize(Handle h, double dx, double dy){}
+        GraphObject transformed(AffineTransform at) {
+            if ((at.getType() & ~AffineTransform.TYPE_TRANSLATION) == 0) { offsetX+=at.getTranslateX(); offsetY+=at.getTranslateY(); return this; }
+            AffineTransform full = new AffineTransform(at); full.translate(offsetX, offsetY); cloud = cloud.transformed(full); offsetX=0; offsetY=0; return this;
+        }
+        private void writeObject(java.io.ObjectOutputStream out) throws java.io.IOException { out.defaultWriteObject(); cloud.write(out); }
+        private void readObject(java.io.ObjectInputStream in) throws java.io.IOException, ClassNotFoundException { in.defaultReadObject(); cloud = PointCloud.read(in); }
+    }
+
+    /** Group node: children live in the group's own coordinates and the whole group moves by updating one transform. */
+    static class GGroup extends GraphObject {
+        private static final long serialVersionUID = 1L;
+        AffineTransform transform = new AffineTransform(); ArrayList<GraphObject> children;
+        transient BoundsTree tree; transient Rectangle2D localBounds, worldBounds; transient boolean expanded;
+        public GGroup(ArrayList<GraphObject> kids) { super(Color.BLACK, 1, "Group (" + kids.size() + ")"); children = kids; rebuildShape(); }
+        // Child bounds are padded by the hit-test tolerance so the tree can answer both culling and picking
+        void rebuildShape() {
+            Rectangle2D[] b = new Rectangle2D[children.size()]; localBounds = null;
+            for (int i = 0; i < b.length; i++) {
+                GraphObject c = children.get(i); c.rebuildShape(); Rectangle2D cb = c.getBounds(); double pad = Math.max(8, c.strokeWidth);
+                localBounds = localBounds == null ? (Rectangle2D) cb.clone() : localBounds.createUnion(cb);
+                b[i] = new Rectangle2D.Double(cb.getX() - pad, cb.getY() - pad, cb.getWidth() + 2*pad, cb.getHeight() + 2*pad);
+            }
+            if (localBounds == null) localBounds = new Rectangle2D.Double();
+            tree = new BoundsTree(b); worldBounds = null;
+        }
+        Rectangle2D getBounds() { if (worldBounds == null) worldBounds = transform.createTransformedShape(localBounds).getBounds2D(); return worldBounds; }
+        Shape getShape() { return getBounds(); }
+        void drawPlain(Graphics2D g2d) {
+            AffineTransform old = g2d.getTransform(); g2d.transform(transform);
+            Rectangle clip = g2d.getClipBounds();
+            if (clip == null) { for (GraphObject c : children) c.draw(g2d); }
+            else { boolean[] hit = new boolean[children.size()]; if (tree.query(clip, hit) > 0) for (int i = 0; i < hit.length; i++) if (hit[i]) children.get(i).draw(g2d); }
+            g2d.setTransform(old);
+        }
+        void drawShape(Graphics2D g2d) { g2d.draw(getBounds()); }
+        boolean contains(Point2D p) {
+            Point2D q; try { q = transform.inverseTransform(p, null); } catch (NoninvertibleTransformException ex) { return false; }
+            boolean[] hit = new boolean[children.size()];
+            if (tree.query(new Rectangle2D.Double(q.getX(), q.getY(), 0, 0), hit) == 0) return false;
+            for (int i = hit.length - 1; i >= 0; i--) if (hit[i] && children.get(i).contains(q)) return true;
+            return false;
+        }
+        void move(double dx, double dy) { transformed(AffineTransform.getTranslateInstance(dx, dy)); }
+        GraphObject transformed(AffineTransform at) { transform.preConcatenate(at); worldBounds = null; return this; }
+        GraphObject copy() {
+            ArrayList<GraphObject> k = Links.copyScene(children);
+            GGroup o = new GGroup(k, tree, localBounds); o.transform = new AffineTransform(transform); o.isSelected=isSelected; o.name=name; o.expanded=expanded; return o;
+        }
+        private GGroup(ArrayList<GraphObject> kids, BoundsTree t, Rectangle2D lb) { super(Color.BLACK, 1, "Group"); children = kids; tree = t; localBounds = lb; }
+        void clearChildSelection() { for (GraphObject c : children) { c.isSelected = false; if (c instanceof GGroup) ((GGroup) c).clearChildSelection(); } }
+        void drawHandles(Graphics2D g) { drawCorners(g, getBounds()); }
+        Handle getHandleAt(Point2D p) { return cornerAt(getBounds(), p); }
+        // Scales about the opposite corner of the bounds; only the group transform changes
+        void resize(Handle h, double dx, double dy) { AffineTransform s = cornerScale(getBounds(), h, dx, dy); if (s != null) transformed(s); }
+    }
+    /**
+     * One placement of a SymbolDef. Only the transform and style are per instance; the geometry is
+     * shared, so copies (undo, snapshots, duplicates) cost a few fields. Until restyled the parts
+     * keep their own colours; afterwards they are all drawn in the instance's colour and stroke.
+     */
+    static class GInstance extends GraphObject {
+        private static final long serialVersionUID = 1L;
+        SymbolDef def; AffineTransform transform; boolean styled; transient Rectangle2D worldBounds;
+        public GInstance(SymbolDef def, AffineTransform at) {
+            super(def.geometry.isEmpty() ? Color.BLACK : def.geometry.get(0).color, def.geometry.isEmpty() ? 1 : def.geometry.get(0).strokeWidth, def.name);
+            this.def = def; transform = new AffineTransform(at);
+        }
+        void rebuildShape() { worldBounds = null; }
+        Rectangle2D getBounds() { if (worldBounds == null) worldBounds = transform.createTransformedShape(def.bounds()).getBounds2D(); return worldBounds; }
+        Shape getShape() { return getBounds(); }
+        void drawPlain(Graphics2D g2d) { AffineTransform old = g2d.getTransform(); g2d.transform(transform); def.draw(g2d, styled ? color : null, strokeWidth); g2d.setTransform(old); }
+        void drawShape(Graphics2D g2d) { g2d.draw(getBounds()); }
+        boolean contains(Point2D p) { try { return def.contains(transform.inverseTransform(p, null)); } catch (NoninvertibleTransformException ex) { return false; } }
+        void move(double dx, double dy) { transformed(AffineTransform.getTranslateInstance(dx, dy)); }
+        GraphObject transformed(AffineTransform at) { transform.preConcatenate(at); worldBounds = null; return this; }
+        GraphObject copy() { GInstance o = new GInstance(def, transform); o.color=color; o.strokeWidth=strokeWidth; o.styled=styled; o.isSelected=isSelected; o.name=name; return o; }
+        void restyle(Color c, float w) { if (!c.equals(color) || w != strokeWidth) styled = true; super.restyle(c, w); }
+        void drawHandles(Graphics2D g) { drawCorners(g, getBounds()); }
+        Handle getHandleAt(Point2D p) { return cornerAt(getBounds(), p); }
+        void resize(Handle h, double dx, double dy) { AffineTransform s = cornerScale(getBounds(), h, dx, dy); if (s != null) transformed(s); }
+    }
+
+    /**
+     * Coalesces mouse drags to the display refresh rate. The first drag of a burst is delivered at once;
+     * later ones only replace the pending event, and a frame timer hands the latest one to the handlers.
+     * Handlers work from their last world position, so the skipped movement is still applied as one delta.
+     */
+    class DragPacer extends MouseAdapter implements ActionListener {
+        final MouseMotionListener[] targets; final Timer timer; MouseEvent pending;
+        /** Hands every drag straight through; session replay sets this so results don't depend on timer timing. */
+        boolean immediate = false;
+        DragPacer(MouseMotionListener... targets) { this.targets = targets; timer = new Timer(frameMillis(), this); timer.setCoalesce(true); }
+        public void mouseDragged(MouseEvent e) { if(immediate) { dispatch(e); return; } if(timer.isRunning()) { pending = e; return; } dispatch(e); timer.restart(); }
+        public void mouseMoved(MouseEvent e) { for(MouseMotionListener l : targets) l.mouseMoved(e); }
+        public void mouseReleased(MouseEvent e) { flush(); timer.stop(); }
+        public void actionPerformed(ActionEvent e) { if(pending == null) timer.stop(); else flush(); }
+        void flush() { if(pending != null) { MouseEvent p = pending; pending = null; dispatch(p); } }
+        private void dispatch(MouseEvent e) { for(MouseMotionListener l : targets) l.mouseDragged(e); }
+        private int frameMillis() {
+            try { int hz = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDisplayMode().getRefreshRate(); if(hz > 0) return Math.max(1, 1000 / hz); }
+            catch(Exception ex) {}
+            return 16;
+        }
     }
 
     class PanningHandler extends MouseAdapter {
@@ -659,36 +1597,39 @@ public class Source extends JFrame {
         }
     }
     class DrawingHandler extends MouseAdapter {
-        Point2D start; private GPoint findSnap(Point2D p) { for(int i=canvas.objects.size()-1; i>=0; i--) if(canvas.objects.get(i) instanceof GPoint && canvas.objects.get(i).contains(p)) return (GPoint)canvas.objects.get(i); return null; }
+        Point2D start; GPoint startPoint; // the point a new line starts on, which it is attached to
         public void mousePressed(MouseEvent e) {
             if(currentMode==Mode.PAN || currentMode==Mode.SELECT) return;
             try { Point2D raw = canvas.getTransform().inverseTransform(e.getPoint(), null); start = new Point2D.Double(snap(raw.getX()), snap(raw.getY()));
-                if(currentMode==Mode.LINE) { GPoint s=findSnap(raw); if(s!=null) start=new Point2D.Double(s.x, s.y); }
-                else if(currentMode==Mode.POINT) { undoManager.saveState(canvas.objects); canvas.objects.add(new GPoint(start.getX(), start.getY(), "P"+canvas.objects.size())); canvas.repaint(); refreshLayers(); }
+                if(currentMode==Mode.LINE) { startPoint=pointAt(raw); if(startPoint!=null) start=new Point2D.Double(startPoint.x, startPoint.y); }
+                else if(currentMode==Mode.POINT) { undoManager.saveState(canvas.objects); GPoint p=new GPoint(start.getX(), start.getY(), "P"+canvas.objects.size()); canvas.objects.add(p); fireAdded(canvas.objects.size()-1, p); canvas.repaint(); refreshLayers(); }
                 else if(currentMode==Mode.POLYGON) { undoManager.saveState(canvas.objects); createPoly(start.getX(), start.getY()); canvas.repaint(); refreshLayers(); }
             } catch(Exception ex){}
         }
         public void mouseDragged(MouseEvent e) {
             if(currentMode==Mode.PAN || currentMode==Mode.SELECT || currentMode==Mode.POINT || currentMode==Mode.POLYGON) return;
             try { Point2D raw = canvas.getTransform().inverseTransform(e.getPoint(), null); Point2D end = new Point2D.Double(snap(raw.getX()), snap(raw.getY()));
-                if(currentMode==Mode.RECTANGLE) { double x=Math.min(start.getX(), end.getX()), y=Math.min(start.getY(), end.getY()); canvas.tempObject = new GRectangle(x, y, Math.abs(start.getX()-end.getX()), Math.abs(start.getY()-end.getY()), currentColor, currentStroke); }
-                else if(currentMode==Mode.LINE) { GPoint s=findSnap(raw); if(s!=null) end=new Point2D.Double(s.x, s.y); canvas.tempObject = new GLine(start, end, currentColor, currentStroke); }
-                else if(currentMode==Mode.CIRCLE) { canvas.tempObject = new GCircle(start.getX(), start.getY(), start.distance(end), currentColor, currentStroke); }
+                // The rubber-band object is created once per gesture and updated in place afterwards
+                if(currentMode==Mode.RECTANGLE) { double x=Math.min(start.getX(), end.getX()), y=Math.min(start.getY(), end.getY()), w=Math.abs(start.getX()-end.getX()), h=Math.abs(start.getY()-end.getY());
+                    if(canvas.tempObject instanceof GRectangle) ((GRectangle)canvas.tempObject).setFrame(x, y, w, h); else canvas.tempObject = new GRectangle(x, y, w, h, currentColor, currentStroke); }
+                else if(currentMode==Mode.LINE) { GPoint s=pointAt(raw); if(s!=null) end=new Point2D.Double(s.x, s.y);
+                    if(canvas.tempObject instanceof GLine) ((GLine)canvas.tempObject).setEnds(start, end); else canvas.tempObject = new GLine(start, end, currentColor, currentStroke); }
+                else if(currentMode==Mode.CIRCLE) { if(canvas.tempObject instanceof GCircle) ((GCircle)canvas.tempObject).r = start.distance(end); else canvas.tempObject = new GCircle(start.getX(), start.getY(), start.distance(end), currentColor, currentStroke); }
                 canvas.repaint();
             } catch(Exception ex){}
         }
         public void mouseReleased(MouseEvent e) {
-            if(canvas.tempObject != null) { undoManager.saveState(canvas.objects); if(currentMode==Mode.LINE && canvas.tempObject instanceof GLine) { try { Point2D r=canvas.getTransform().inverseTransform(e.getPoint(), null); GPoint s=findSnap(r); if(s!=null) ((GLine)canvas.tempObject).line.setLine(((GLine)canvas.tempObject).line.getP1(), new Point2D.Double(s.x, s.y)); }catch(Exception ex){}} canvas.objects.add(canvas.tempObject); canvas.tempObject=null; canvas.repaint(); refreshLayers(); }
+            if(canvas.tempObject != null) { undoManager.saveState(canvas.objects); if(currentMode==Mode.LINE && canvas.tempObject instanceof GLine) { try { Point2D r=canvas.getTransform().inverseTransform(e.getPoint(), null); GPoint s=pointAt(r); if(startPoint!=null) Links.attach(canvas.tempObject, 0, startPoint); if(s!=null) Links.attach(canvas.tempObject, 1, s); }catch(Exception ex){}} startPoint=null; canvas.objects.add(canvas.tempObject); fireAdded(canvas.objects.size()-1, canvas.tempObject); canvas.tempObject=null; canvas.repaint(); refreshLayers(); }
         }
-        private void createPoly(double cx, double cy) { try { int s = Integer.parseInt(JOptionPane.showInputDialog("Sides:")); double len = Double.parseDouble(JOptionPane.showInputDialog("Length:")); if(s<3)return; double r=len/(2*Math.sin(Math.PI/s)); Path2D.Double p=new Path2D.Double(); for(int i=0; i<s; i++) { double t=2*Math.PI*i/s-Math.PI/2; double px=cx+r*Math.cos(t), py=cy+r*Math.sin(t); if(i==0)p.moveTo(px,py); else p.lineTo(px,py); } p.closePath(); canvas.objects.add(new GPolygon(p, currentColor, currentStroke)); } catch(Exception ex){} }
+        private void createPoly(double cx, double cy) { try { int s = Integer.parseInt(JOptionPane.showInputDialog("Sides:")); double len = Double.parseDouble(JOptionPane.showInputDialog("Length:")); if(s<3)return; double r=len/(2*Math.sin(Math.PI/s)); Path2D.Double p=new Path2D.Double(); for(int i=0; i<s; i++) { double t=2*Math.PI*i/s-Math.PI/2; double px=cx+r*Math.cos(t), py=cy+r*Math.sin(t); if(i==0)p.moveTo(px,py); else p.lineTo(px,py); } p.closePath(); GPolygon poly=new GPolygon(p, currentColor, currentStroke); canvas.objects.add(poly); fireAdded(canvas.objects.size()-1, poly); } catch(Exception ex){} }
     }
     class SelectHandler extends MouseAdapter {
-        GraphObject targetObj; Point2D lastWorldPos; Point screenStart; boolean isDraggingObj=false, isMarquee=false, isResizing=false; Handle activeHandle=Handle.NONE;
+        GraphObject targetObj; Point2D lastWorldPos; Point screenStart; boolean isDraggingObj=false, isMarquee=false, isResizing=false, resized=false; Handle activeHandle=Handle.NONE;
         public void mousePressed(MouseEvent e) {
             if(currentMode!=Mode.SELECT) return;
             if(SwingUtilities.isRightMouseButton(e)) { handleRightClick(e); return; }
             try { screenStart = e.getPoint(); Point2D raw = canvas.getTransform().inverseTransform(e.getPoint(), null); Point2D clickP = raw;
-                for(GraphObject o : canvas.objects) { if(o.isSelected) { Handle h=o.getHandleAt(clickP); if(h!=Handle.NONE){targetObj=o; activeHandle=h; isResizing=true; lastWorldPos=new Point2D.Double(snap(clickP.getX()), snap(clickP.getY())); return; }}}
+                for(GraphObject o : canvas.objects) { if(o.isSelected) { Handle h=o.getHandleAt(clickP); if(h!=Handle.NONE){targetObj=o; activeHandle=h; isResizing=true; resized=false; lastWorldPos=new Point2D.Double(snap(clickP.getX()), snap(clickP.getY())); return; }}}
                 GraphObject clicked = null; for(int i=canvas.objects.size()-1; i>=0; i--) if(canvas.objects.get(i).contains(clickP)) { clicked=canvas.objects.get(i); break; }
                 if(clicked!=null) { targetObj=clicked; isDraggingObj=true; lastWorldPos=new Point2D.Double(snap(clickP.getX()), snap(clickP.getY())); if(!e.isShiftDown()&&!targetObj.isSelected)for(GraphObject o:canvas.objects)o.isSelected=false; targetObj.isSelected=true; }
                 else { if(!e.isShiftDown())for(GraphObject o:canvas.objects)o.isSelected=false; isMarquee=true; canvas.selectionRect=new Rectangle(e.getX(), e.getY(), 0, 0); }
@@ -698,12 +1639,17 @@ public class Source extends JFrame {
         public void mouseDragged(MouseEvent e) {
             if(currentMode!=Mode.SELECT) return;
             try { Point2D raw = canvas.getTransform().inverseTransform(e.getPoint(), null); Point2D cur = new Point2D.Double(snap(raw.getX()), snap(raw.getY()));
-                if(isResizing && targetObj!=null) { double dx=cur.getX()-lastWorldPos.getX(), dy=cur.getY()-lastWorldPos.getY(); if(dx!=0||dy!=0){ targetObj.resize(activeHandle, dx, dy); lastWorldPos=cur; canvas.repaint(); } }
-                else if(isDraggingObj && targetObj!=null) { double dx=cur.getX()-lastWorldPos.getX(), dy=cur.getY()-lastWorldPos.getY(); if(dx!=0||dy!=0){ for(GraphObject o:canvas.objects)if(o.isSelected)o.move(dx, dy); lastWorldPos=cur; canvas.repaint(); } }
-                else if(isMarquee) { int x=Math.min(screenStart.x, e.getX()), y=Math.min(screenStart.y, e.getY()); canvas.selectionRect=new Rectangle(x, y, Math.abs(screenStart.x-e.getX()), Math.abs(screenStart.y-e.getY())); AffineTransform at=canvas.getTransform(); for(GraphObject o:canvas.objects)if(at.createTransformedShape(o.getShape()).intersects(x, y, canvas.selectionRect.width, canvas.selectionRect.height))o.isSelected=true; canvas.repaint(); }
+                if(isResizing && targetObj!=null) { double dx=cur.getX()-lastWorldPos.getX(), dy=cur.getY()-lastWorldPos.getY(); if(dx!=0||dy!=0){ int end=Links.endFor(targetObj, activeHandle); if(end>=0) Links.detach(targetObj, end); targetObj.resize(activeHandle, dx, dy); resized=true; fireChanged(targetObj); lastWorldPos=cur; canvas.repaint(); } }
+                else if(isDraggingObj && targetObj!=null) { double dx=cur.getX()-lastWorldPos.getX(), dy=cur.getY()-lastWorldPos.getY(); if(dx!=0||dy!=0){ ArrayList<GraphObject> moved=new ArrayList<>(); for(GraphObject o:canvas.objects)if(o.isSelected){o.move(dx, dy); moved.add(o);} fireMoved(moved, dx, dy); fireReshaped(Links.settle(moved)); lastWorldPos=cur; canvas.repaint(); } }
+                else if(isMarquee) { int x=Math.min(screenStart.x, e.getX()), y=Math.min(screenStart.y, e.getY()); canvas.selectionRect.setBounds(x, y, Math.abs(screenStart.x-e.getX()), Math.abs(screenStart.y-e.getY()));
+                    // Canvas transform is translate + scale, so the marquee is tested as one world-space rectangle instead of transforming every shape
+                    Rectangle2D world=canvas.getTransform().createInverse().createTransformedShape(canvas.selectionRect).getBounds2D(); for(GraphObject o:canvas.objects)if(o.getShape().intersects(world))o.isSelected=true; canvas.repaint(); }
             } catch(Exception ex){}
         }
-        public void mouseReleased(MouseEvent e) { if(isDraggingObj||isResizing)undoManager.saveState(canvas.objects); if(isMarquee){canvas.selectionRect=null; canvas.repaint(); updateLayerSelection();} isDraggingObj=false; isMarquee=false; isResizing=false; }
+        public void mouseReleased(MouseEvent e) {
+            // A line end or polygon vertex dropped on a point is attached to it
+            if(isResizing && resized && targetObj!=null) { int end=Links.endFor(targetObj, activeHandle); try { GPoint p=end<0 ? null : pointAt(canvas.getTransform().inverseTransform(e.getPoint(), null)); if(p!=null){ Links.attach(targetObj, end, p); fireChanged(targetObj); canvas.repaint(); } }catch(Exception ex){} }
+            if(isDraggingObj||isResizing)undoManager.saveState(canvas.objects); if(isMarquee){canvas.selectionRect=null; canvas.repaint(); updateLayerSelection();} isDraggingObj=false; isMarquee=false; isResizing=false; }
         private void handleRightClick(MouseEvent e) { try { Point2D p=canvas.getTransform().inverseTransform(e.getPoint(), null); GraphObject c=null; for(int i=canvas.objects.size()-1; i>=0; i--) if(canvas.objects.get(i).contains(p)){c=canvas.objects.get(i); break;} if(c!=null){ if(!c.isSelected){for(GraphObject o:canvas.objects)o.isSelected=false; c.isSelected=true;} canvas.repaint(); updateLayerSelection(); contextMenu.show(canvas, e.getX(), e.getY()); } else { for(GraphObject o:canvas.objects)o.isSelected=false; canvas.repaint(); updateLayerSelection(); } }catch(Exception ex){} }
     }
     // Variables declaration - do not modify
@@ -0,0 +1,167 @@
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A reusable shape that any number of GInstances place, each with its own transform. The geometry
+ * is built once and never changes: redefining a symbol makes a new SymbolDef and points the
+ * instances at it, so snapshots and undo entries that still hold the old one keep showing it, and
+ * copies of an instance share the definition instead of duplicating its parts. Java serialization
+ * writes a shared object once per stream, so a saved drawing holds each symbol once however often
+ * it is placed.
+ * <p>
+ * Placements that the device transform only translates and scales uniformly are drawn from a
+ * sprite cached per scale and style; others are drawn part by part. May be drawn from any thread.
+ */
+final class SymbolDef implements Serializable {
+    private static final long serialVersionUID = 1L;
+    /** Placements larger than this on screen, in pixels, are drawn as vectors rather than cached. */
+    static final int MAX_SPRITE = 256;
+    private static final int SPRITES_PER_SYMBOL = 8;
+
+    final String name;
+    /** The parts in symbol coordinates, flattened: no groups, instances or links. */
+    final List<Source.GraphObject> geometry;
+
+    private transient volatile boolean ready;
+    private transient Rectangle2D bounds;
+    private transient BoundsTree tree;
+    private transient float widestStroke;
+    private transient Map<String, BufferedImage> sprites;
+
+    private SymbolDef(String name, List<Source.GraphObject> parts) {
+        this.name = name;
+        this.geometry = Collections.unmodifiableList(parts);
+    }
+
+    /** A symbol from copies of objects mapped through at into symbol coordinates. The objects are not modified. */
+    static SymbolDef of(String name, List<Source.GraphObject> objects, AffineTransform at) {
+        List<Source.GraphObject> parts = new ArrayList<>();
+        for (Source.GraphObject o : objects) flatten(o, at, parts);
+        return new SymbolDef(name, parts);
+    }
+
+    private static void flatten(Source.GraphObject o, AffineTransform at, List<Source.GraphObject> out) {
+        if (o instanceof Source.GGroup || o instanceof Source.GInstance) {
+            boolean group = o instanceof Source.GGroup;
+            AffineTransform t = new AffineTransform(at);
+            t.concatenate(group ? ((Source.GGroup) o).transform : ((Source.GInstance) o).transform);
+            for (Source.GraphObject c : group ? ((Source.GGroup) o).children : ((Source.GInstance) o).def.geometry) flatten(c, t, out);
+            return;
+        }
+        Source.GraphObject c = o.copy();
+        Links.remap(c, p -> null);
+        c.isSelected = false;
+        out.add(at.isIdentity() ? c : c.transformed(at));
+    }
+
+    /** Copies of the parts mapped through at, for taking an instance apart. */
+    List<Source.GraphObject> parts(AffineTransform at) {
+        List<Source.GraphObject> out = new ArrayList<>(geometry.size());
+        for (Source.GraphObject c : geometry) {
+            Source.GraphObject k = c.copy();
+            out.add(at.isIdentity() ? k : k.transformed(at));
+        }
+        return out;
+    }
+
+    // Part bounds are padded by the hit-test tolerance, as in GGroup
+    private synchronized void prepare() {
+        if (ready) return;
+        Rectangle2D[] hit = new Rectangle2D[geometry.size()];
+        Rectangle2D b = null;
+        float widest = 0;
+        for (int i = 0; i < hit.length; i++) {
+            Source.GraphObject c = geometry.get(i);
+            c.rebuildShape();
+            Rectangle2D cb = c.getBounds();
+            double pad = Math.max(8, c.strokeWidth);
+            b = b == null ? (Rectangle2D) cb.clone() : b.createUnion(cb);
+            hit[i] = new Rectangle2D.Double(cb.getX() - pad, cb.getY() - pad, cb.getWidth() + 2 * pad, cb.getHeight() + 2 * pad);
+            widest = Math.max(widest, c.strokeWidth);
+        }
+        bounds = b == null ? new Rectangle2D.Double() : b;
+        tree = new BoundsTree(hit);
+        widestStroke = widest;
+        sprites = new LinkedHashMap<>(SPRITES_PER_SYMBOL, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, BufferedImage> eldest) {
+                return size() > SPRITES_PER_SYMBOL;
+            }
+        };
+        ready = true;
+    }
+
+    Rectangle2D bounds() {
+        if (!ready) prepare();
+        return bounds;
+    }
+
+    /** p in symbol coordinates. */
+    boolean contains(Point2D p) {
+        if (!ready) prepare();
+        boolean[] hit = new boolean[geometry.size()];
+        if (tree.query(new Rectangle2D.Double(p.getX(), p.getY(), 0, 0), hit) == 0) return false;
+        for (int i = hit.length - 1; i >= 0; i--) if (hit[i] && geometry.get(i).contains(p)) return true;
+        return false;
+    }
+
+    /**
+     * Draws the symbol with g2d in symbol coordinates. A non-null color draws every part in that
+     * colour and stroke instead of its own.
+     */
+    void draw(Graphics2D g2d, Color color, float stroke) {
+        if (!ready) prepare();
+        AffineTransform dev = g2d.getTransform();
+        if (MarkerAtlas.supports(dev)) {
+            double scale = dev.getScaleX(), pad = Math.max(widestStroke, color == null ? 0 : stroke) / 2 + 4;
+            int w = (int) Math.ceil((bounds.getWidth() + 2 * pad) * scale) + 2, h = (int) Math.ceil((bounds.getHeight() + 2 * pad) * scale) + 2;
+            if (w <= MAX_SPRITE && h <= MAX_SPRITE) {
+                BufferedImage img = sprite(scale, pad, w, h, color, stroke);
+                Point2D o = dev.transform(new Point2D.Double(bounds.getX() - pad, bounds.getY() - pad), null);
+                g2d.setTransform(new AffineTransform());
+                g2d.drawImage(img, (int) Math.floor(o.getX()), (int) Math.floor(o.getY()), null);
+                g2d.setTransform(dev);
+                return;
+            }
+        }
+        drawParts(g2d, color, stroke, g2d.getClipBounds());
+    }
+
+    private void drawParts(Graphics2D g2d, Color color, float stroke, Rectangle clip) {
+        if (color != null) { g2d.setColor(color); g2d.setStroke(new BasicStroke(stroke, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND)); }
+        boolean[] hit = null;
+        if (clip != null) {
+            hit = new boolean[geometry.size()];
+            if (tree.query(clip, hit) == 0) return;
+        }
+        for (int i = 0; i < geometry.size(); i++) {
+            if (hit != null && !hit[i]) continue;
+            if (color == null) geometry.get(i).drawPlain(g2d); else geometry.get(i).drawShape(g2d);
+        }
+    }
+
+    private synchronized BufferedImage sprite(double scale, double pad, int w, int h, Color color, float stroke) {
+        String key = scale + ":" + (color == null ? "-" : color.getRGB() + ":" + stroke);
+        BufferedImage img = sprites.get(key);
+        if (img == null) {
+            img = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB_PRE);
+            Graphics2D g = img.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.scale(scale, scale);
+            g.translate(pad - bounds.getX(), pad - bounds.getY());
+            drawParts(g, color, stroke, null);
+            g.dispose();
+            sprites.put(key, img);
+        }
+        return img;
+    }
+}
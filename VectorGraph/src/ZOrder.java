@@ -0,0 +1,136 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Moves a selection through the z-order (the scene list, back to front). Every command is the same
+ * stable merge: selected objects keep their order among themselves, the others keep theirs, and
+ * each selected object lands after some number of the unselected ones. Only the stretches of the
+ * list that can change are rewritten: stepping a scattered selection forward touches a few slots
+ * around each selected object, whatever the size of the scene, and the undo entry holds just
+ * those stretches.
+ */
+final class ZOrder {
+    enum Move { FRONT, BACK, FORWARD, BACKWARD, ABOVE, BELOW }
+
+    private ZOrder() {}
+
+    /**
+     * Reorders objects in place. sel holds the selected indices in ascending order. arg is the
+     * number of steps for FORWARD and BACKWARD (each selected object passes that many unselected
+     * ones), or the index of an unselected object to go directly above or below for ABOVE and
+     * BELOW; it is ignored otherwise. Returns the undo entry, or null when nothing moved.
+     */
+    static ReorderEdit reorder(List<Source.GraphObject> objects, int[] sel, Move move, int arg) {
+        int n = objects.size(), k = sel.length;
+        if (k == 0 || k == n) return null;
+        ReorderEdit e = new ReorderEdit();
+        int first = sel[0], last = sel[k - 1];
+        switch (move) {
+            case FRONT: stretch(objects, sel, 0, k, first, n - 1, move, arg, e); break;
+            case BACK: stretch(objects, sel, 0, k, 0, last, move, arg, e); break;
+            case ABOVE:
+            case BELOW:
+                if (arg < 0 || arg >= n || Arrays.binarySearch(sel, arg) >= 0) return null;
+                if (move == Move.ABOVE) stretch(objects, sel, 0, k, Math.min(first, arg + 1), Math.max(last, arg), move, arg, e);
+                else stretch(objects, sel, 0, k, Math.min(first, arg), Math.max(last, arg - 1), move, arg, e);
+                break;
+            case FORWARD:
+                // Each run of selected objects close enough to share unselected ones is one stretch,
+                // reaching arg unselected objects past its last selected one
+                for (int a = 0; a < k && arg > 0; ) {
+                    int b = a, hi = sel[a], passed = 0;
+                    while (passed < arg && hi + 1 < n) {
+                        hi++;
+                        if (b + 1 < k && sel[b + 1] == hi) { b++; passed = 0; } else passed++;
+                    }
+                    stretch(objects, sel, a, b + 1, sel[a], hi, move, arg, e);
+                    a = b + 1;
+                }
+                break;
+            case BACKWARD:
+                for (int b = k - 1; b >= 0 && arg > 0; ) {
+                    int a = b, lo = sel[b], passed = 0;
+                    while (passed < arg && lo > 0) {
+                        lo--;
+                        if (a > 0 && sel[a - 1] == lo) { a--; passed = 0; } else passed++;
+                    }
+                    stretch(objects, sel, a, b + 1, lo, sel[b], move, arg, e);
+                    b = a - 1;
+                }
+                break;
+        }
+        return e.from.isEmpty() ? null : e;
+    }
+
+    /** Merges objects [lo, hi], whose selected ones are sel[a..b), and records the part that changed. */
+    private static void stretch(List<Source.GraphObject> objects, int[] sel, int a, int b, int lo, int hi, Move move, int arg, ReorderEdit e) {
+        // Split the stretch into unselected objects and selected ones, each selected one keyed by
+        // how many unselected objects of the stretch should end up below it
+        int span = hi - lo + 1, goes = b - a;
+        Source.GraphObject[] stay = new Source.GraphObject[span - goes], go = new Source.GraphObject[goes];
+        int[] key = new int[goes];
+        int stays = 0, g = 0, anchor = -1;
+        for (int i = lo, s = a; i <= hi; i++) {
+            if (s < b && sel[s] == i) { go[g] = objects.get(i); key[g++] = stays; s++; }
+            else { if (i == arg) anchor = stays; stay[stays++] = objects.get(i); }
+        }
+        for (g = 0; g < goes; g++) {
+            switch (move) {
+                case FRONT: key[g] = stays; break;
+                case BACK: key[g] = 0; break;
+                case FORWARD: key[g] = Math.min(key[g] + arg, stays); break;
+                case BACKWARD: key[g] = Math.max(key[g] - arg, 0); break;
+                // The anchor lies just outside the stretch when it is next to the selection's end
+                case ABOVE: key[g] = anchor + 1; break;
+                case BELOW: key[g] = anchor < 0 ? stays : anchor; break;
+            }
+        }
+
+        Source.GraphObject[] after = new Source.GraphObject[span];
+        int out = 0;
+        g = 0;
+        for (int j = 0; j <= stays; j++) {
+            while (g < goes && key[g] <= j) after[out++] = go[g++];
+            if (j < stays) after[out++] = stay[j];
+        }
+        // Trim the ends that did not change
+        int from = 0, to = span;
+        while (from < to && after[from] == objects.get(lo + from)) from++;
+        while (to > from && after[to - 1] == objects.get(lo + to - 1)) to--;
+        if (from == to) return;
+        Source.GraphObject[] before = new Source.GraphObject[to - from];
+        for (int i = from; i < to; i++) {
+            before[i - from] = objects.get(lo + i);
+            objects.set(lo + i, after[i]);
+        }
+        e.from.add(lo + from);
+        e.before.add(before);
+        e.after.add(Arrays.copyOfRange(after, from, to));
+    }
+
+    /** Undo entry for a reorder: each stretch of the list that changed, before and after. */
+    static final class ReorderEdit implements Source.Edit {
+        final List<Integer> from = new ArrayList<>();
+        final List<Source.GraphObject[]> before = new ArrayList<>(), after = new ArrayList<>();
+
+        private void write(List<Source.GraphObject> objects, List<Source.GraphObject[]> order) {
+            for (int r = 0; r < from.size(); r++) {
+                Source.GraphObject[] o = order.get(r);
+                for (int i = 0; i < o.length; i++) objects.set(from.get(r) + i, o[i]);
+            }
+        }
+
+        @Override
+        public ArrayList<Source.GraphObject> undo(ArrayList<Source.GraphObject> objects) {
+            write(objects, before);
+            return objects;
+        }
+
+        @Override
+        public ArrayList<Source.GraphObject> redo(ArrayList<Source.GraphObject> objects) {
+            write(objects, after);
+            return objects;
+        }
+    }
+}